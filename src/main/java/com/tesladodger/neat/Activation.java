@@ -0,0 +1,108 @@
+package com.tesladodger.neat;
+
+
+/**
+ * Transfer function applied to the sum of the inputs of a node.
+ * Each genome has a default function, which any node can override, see Genome.setActivation and
+ * Genome.setNodeActivation. The usual ones are in Standard; any other can be plugged in by
+ * implementing this interface. The function must not keep state, since the same one is called
+ * from several threads and shared by the copies of a genome.
+ */
+public interface Activation {
+
+    /* The standard functions, for the code that names them directly. */
+    Activation STEEPENED_SIGMOID = Standard.STEEPENED_SIGMOID;
+    Activation FAST_SIGMOID = Standard.FAST_SIGMOID;
+    Activation TANH = Standard.TANH;
+    Activation RELU = Standard.RELU;
+    Activation LINEAR = Standard.LINEAR;
+
+    /**
+     * Applies the function.
+     *
+     * @param x sum of the inputs of a node;
+     *
+     * @return output of the node;
+     */
+    float apply (float x);
+
+
+    /**
+     * The functions that come with the library.
+     */
+    enum Standard implements Activation {
+
+        /* Steepened sigmoid from the NEAT paper, 1 / (1 + e^(-4.9x)). */
+        STEEPENED_SIGMOID {
+            public float apply (float x) {
+                return 1f / (1f + (float) Math.exp(-4.9f * x));
+            }
+        },
+
+        /*
+         * Steepened sigmoid read from a table with linear interpolation. The absolute error is
+         * below 2e-6 everywhere, see SigmoidTable.
+         */
+        FAST_SIGMOID {
+            public float apply (float x) {
+                return SigmoidTable.lookup(x);
+            }
+        },
+
+        /* Hyperbolic tangent. */
+        TANH {
+            public float apply (float x) {
+                return (float) Math.tanh(x);
+            }
+        },
+
+        /* Rectified linear unit. */
+        RELU {
+            public float apply (float x) {
+                return x > 0 ? x : 0;
+            }
+        },
+
+        /* Identity. */
+        LINEAR {
+            public float apply (float x) {
+                return x;
+            }
+        },
+        ;
+
+        /**
+         * Samples of the steepened sigmoid in [-RANGE, RANGE]. Outside that interval the sigmoid
+         * is within 4e-9 of 0 or 1, so the ends of the table are returned. Inside it, the error
+         * of the linear interpolation is at most h^2/8 * max|f''| = 1.1e-6, with
+         * h = 2*RANGE/SEGMENTS.
+         */
+        private static final class SigmoidTable {
+
+            private static final float RANGE = 4f;
+            private static final int SEGMENTS = 4096;
+            private static final float SCALE = SEGMENTS / (2 * RANGE);
+
+            private static final float[] TABLE = new float[SEGMENTS + 1];
+
+            static {
+                for (int i = 0; i <= SEGMENTS; i++) {
+                    double x = i / (double) SCALE - RANGE;
+                    TABLE[i] = (float) (1.0 / (1.0 + Math.exp(-4.9 * x)));
+                }
+            }
+
+            static float lookup (float x) {
+                if (x <= -RANGE) return TABLE[0];
+                if (x >= RANGE) return TABLE[SEGMENTS];
+
+                float position = (x + RANGE) * SCALE;
+                int i = (int) position;
+                if (i == SEGMENTS) return TABLE[SEGMENTS];
+                float t = position - i;
+                return TABLE[i] + t * (TABLE[i+1] - TABLE[i]);
+            }
+        }
+    }
+
+}
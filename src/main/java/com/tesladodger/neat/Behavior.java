@@ -11,14 +11,16 @@ public interface Behavior {
      * Method that returns the inputs to the neural network.
      *
      * @return n*m matrix where where m is the number of different input patterns and n is the
-     *        actual number of inputs.
+     *        actual number of inputs. The same matrix can be returned every step, it is only read
+     *        until the next call;
      */
     float[][] updateSensors () ;
 
     /**
      * Method where the individual acts upon the outputs of the neural network.
      *
-     * @param controls raw outputs of the neural network (after sigmoid);
+     * @param controls raw outputs of the neural network (after activation). The matrix is reused in
+     *                 the next step, copy it to keep the values;
      */
     void move (float[][] controls) ;
 
@@ -53,7 +55,8 @@ public interface Behavior {
     /**
      * Should create a completely independent copy of this behavior, to be used by another
      * individual or an offspring. Only copy what's necessary, and be sure to create new
-     * structures instead of returning pointers to the old ones.
+     * structures instead of returning pointers to the old ones. It's never called from more
+     * than one thread at once, so it doesn't need to be thread safe.
      *
      * @return a copy of this behavior;
      */
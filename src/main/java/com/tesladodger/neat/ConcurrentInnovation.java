@@ -0,0 +1,105 @@
+package com.tesladodger.neat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Innovation history that can be used by many threads at once. The pairs of node ids are
+ * split between a number of stripes, each with its own index and lock, so threads only wait for
+ * each other when they look up pairs of the same stripe. A pair always falls in the same
+ * stripe, so it still gets a single number. The numbers come from a shared atomic counter.
+ */
+public class ConcurrentInnovation extends InnovationHistory {
+
+    /* Number of stripes, a power of two. */
+    static final int STRIPES = 64;
+
+    private final LongIntMap[] stripes;
+
+    /* Next innovation number. */
+    private final AtomicInteger counter;
+
+
+    /**
+     * Constructor.
+     */
+    public ConcurrentInnovation () {
+        stripes = new LongIntMap[STRIPES];
+        for (int s = 0; s < STRIPES; s++) {
+            stripes[s] = new LongIntMap();
+        }
+        counter = new AtomicInteger();
+    }
+
+    /**
+     * Method to get the innovation number of a new connection, locking only the stripe of the
+     * pair.
+     *
+     * @param i id of the input node;
+     * @param o id of the output node;
+     *
+     * @return the innovation number of the connection;
+     */
+    @Override
+    int getInnovationNumber (int i, int o) {
+        long key = Genome.pair(i, o);
+        LongIntMap stripe = stripes[stripe(key)];
+        synchronized (stripe) {
+            int number = stripe.get(key, -1);
+            if (number < 0) {
+                number = counter.getAndIncrement();
+                stripe.put(key, number);
+            }
+            return number;
+        }
+    }
+
+
+    @Override
+    int getExistingNumber (int i, int o) {
+        long key = Genome.pair(i, o);
+        LongIntMap stripe = stripes[stripe(key)];
+        synchronized (stripe) {
+            return stripe.get(key, -1);
+        }
+    }
+
+
+    @Override
+    void retainAll (LongHashSet used) {
+        for (LongIntMap stripe : stripes) {
+            synchronized (stripe) {
+                stripe.retainAll(used);
+            }
+        }
+    }
+
+
+    @Override
+    int capacity () {
+        int capacity = 0;
+        for (LongIntMap stripe : stripes) {
+            synchronized (stripe) {
+                capacity += stripe.capacity();
+            }
+        }
+        return capacity;
+    }
+
+
+    @Override
+    public int size () {
+        return counter.get();
+    }
+
+
+    /**
+     * Stripe of a pair, from the high bits of a multiplicative hash, so it doesn't correlate
+     * with the slot inside the stripe.
+     */
+    private static int stripe (long key) {
+        long h = key * 0xC2B2AE3D27D4EB4FL;
+        return (int) (h >>> 58) & (STRIPES - 1);
+    }
+
+}
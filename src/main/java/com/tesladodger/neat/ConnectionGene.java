@@ -37,6 +37,10 @@ public class ConnectionGene {
         return new ConnectionGene(inNode, outNode, weight, expressed, innovationNumber);
     }
 
+    void setInnovationNumber (int innovationNumber) {
+        this.innovationNumber = innovationNumber;
+    }
+
     void disable () {
         expressed = false;
     }
@@ -0,0 +1,117 @@
+package com.tesladodger.neat;
+
+import java.util.Arrays;
+
+
+/**
+ * Innovation history used while making one child on any thread. Connections already in the
+ * shared history get their number; new ones get a temporary number, -1 for the first new pair,
+ * -2 for the second, and so on, and are only added to the shared history later, in slot order,
+ * see MultiThreadedReproduction. So which new connection gets which number doesn't depend on
+ * how the threads run.
+ */
+final class DeferredInnovation extends InnovationHistory {
+
+    /* History the numbers are read from. Not changed while the children are made. */
+    private final InnovationHistory shared;
+
+    /* New pairs of node ids (see Genome.pair), in the order they were asked for. */
+    private long[] pairs;
+    private int count;
+
+
+    /**
+     * Constructor.
+     *
+     * @param shared history of the population;
+     */
+    DeferredInnovation (InnovationHistory shared) {
+        this.shared = shared;
+    }
+
+
+    /**
+     * Returns the number of the connection in the shared history, or a temporary number if it's
+     * not there. The same new pair always gets the same temporary number.
+     *
+     * @param i id of the input node;
+     * @param o id of the output node;
+     *
+     * @return the innovation number of the connection, negative when temporary;
+     */
+    @Override
+    int getInnovationNumber (int i, int o) {
+        int number = shared.getExistingNumber(i, o);
+        if (number >= 0) return number;
+
+        // A child only asks for a few new pairs, so a scan is enough.
+        long key = Genome.pair(i, o);
+        for (int k = 0; k < count; k++) {
+            if (pairs[k] == key) return -1 - k;
+        }
+        if (pairs == null) {
+            pairs = new long[4];
+        }
+        else if (count == pairs.length) {
+            pairs = Arrays.copyOf(pairs, count * 2);
+        }
+        pairs[count] = key;
+        return -1 - count++;
+    }
+
+
+    /**
+     * Returns the number of the connection in the shared history. Temporary numbers are not
+     * looked up.
+     *
+     * @param i id of the input node;
+     * @param o id of the output node;
+     *
+     * @return the innovation number of the connection, or -1 if it's not in the shared history;
+     */
+    @Override
+    int getExistingNumber (int i, int o) {
+        return shared.getExistingNumber(i, o);
+    }
+
+
+    /**
+     * Adds the new pairs to the shared history, in the order they were asked for, and gives the
+     * child the numbers. Only on one thread, after every child was made.
+     *
+     * @param child genome made with this history;
+     */
+    void numberConnections (Genome child) {
+        if (count == 0) return;
+
+        int[] numbers = new int[count];
+        for (int k = 0; k < count; k++) {
+            numbers[k] = shared.getInnovationNumber((int) (pairs[k] >>> 32), (int) pairs[k]);
+        }
+        child.renumberConnections(numbers);
+    }
+
+
+    @Override
+    void retainAll (LongHashSet used) {
+        throw new UnsupportedOperationException("Prune the shared history instead.");
+    }
+
+
+    @Override
+    int capacity () {
+        return pairs == null ? 0 : pairs.length;
+    }
+
+
+    /**
+     * Returns how many new pairs were asked for.
+     *
+     * @return number of temporary numbers given;
+     */
+    @Override
+    public int size () {
+        return count;
+    }
+
+}
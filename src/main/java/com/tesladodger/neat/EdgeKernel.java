@@ -0,0 +1,69 @@
+package com.tesladodger.neat;
+
+
+/**
+ * Inner loop of the batched forward pass: adds the weighted values of one node to another node,
+ * for every pattern of the batch.
+ *
+ * On JDK 17 and newer the multi-release jar contains a kernel that uses the Vector API. It is
+ * used when the jdk.incubator.vector module is added to the runtime (--add-modules), unless the
+ * system property neat.vector is set to false. Everywhere else the scalar kernel is used.
+ */
+interface EdgeKernel {
+
+    /**
+     * Does to[j] += from[j] * weight for every j in [0, patterns).
+     *
+     * @param from values of the node sending the connection, one per pattern;
+     * @param to values of the node receiving the connection;
+     * @param patterns number of patterns in the batch;
+     * @param weight of the connection;
+     */
+    void propagate (float[] from, float[] to, int patterns, float weight);
+
+    /**
+     * Smallest batch this kernel is worth calling for. Under it, the call and the vector setup
+     * cost more than they save, and the plain loop of the forward pass is used.
+     *
+     * @return number of patterns;
+     */
+    int minPatterns ();
+
+
+    /**
+     * Plain loop, used when the vector kernel is not available.
+     */
+    final class Scalar implements EdgeKernel {
+        public void propagate (float[] from, float[] to, int patterns, float weight) {
+            for (int j = 0; j < patterns; j++) {
+                to[j] += from[j] * weight;
+            }
+        }
+
+        public int minPatterns () {
+            // The forward pass runs the same loop inline.
+            return Integer.MAX_VALUE;
+        }
+    }
+
+
+    /**
+     * Returns the best kernel available in the running JVM.
+     *
+     * @return vector kernel if it can be loaded, scalar kernel otherwise;
+     */
+    static EdgeKernel load () {
+        if (!Boolean.parseBoolean(System.getProperty("neat.vector", "true"))) {
+            return new Scalar();
+        }
+        try {
+            return (EdgeKernel) Class.forName("com.tesladodger.neat.VectorEdgeKernel")
+                    .getDeclaredConstructor().newInstance();
+        }
+        catch (Exception | LinkageError e) {
+            // Older JDK, or the incubator module was not added.
+            return new Scalar();
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+package com.tesladodger.neat;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Runs the whole episode of each individual (update sensors, think and move until it dies) as a
+ * task of its own. Meant for behaviors that block, for example waiting for a simulator process:
+ * a blocked episode only holds its own thread, not a worker of the fork-join pool.
+ *
+ * On JDK 21 and later every episode gets a virtual thread, so thousands of them can wait at once
+ * on a few carrier threads. The executor is found by reflection, so the library still runs on
+ * older JDKs, where a cached pool of platform threads is used instead.
+ */
+class EpisodeExecutor {
+
+    private final ExecutorService executor;
+
+    /* True when the episodes run on virtual threads. */
+    private final boolean virtual;
+
+
+    /**
+     * Constructor.
+     */
+    EpisodeExecutor () {
+        ExecutorService service;
+        try {
+            service = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            service = null;
+        }
+
+        virtual = service != null;
+        if (service == null) {
+            service = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "neat-episode");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        executor = service;
+    }
+
+
+    /**
+     * Runs the episodes of the alive individuals and waits for all of them to end. Each episode
+     * counts its own steps and checks for cancellation between them; a stopped episode leaves
+     * its individual alive, so running again resumes it. The listener is told, on the calling
+     * thread, every time an episode ends.
+     *
+     * When an episode throws, or the calling thread is interrupted, the other episodes are told
+     * to stop after their current step, and this only returns once all of them have ended, so
+     * nothing touches the individuals afterwards.
+     *
+     * @param individuals array;
+     * @param alive indexes of the alive individuals;
+     * @param count number of alive individuals;
+     * @param evaluation checked for cancellation between steps, can be null;
+     * @param listener told when each episode ends, can be null;
+     * @param generation number, given to the listener;
+     *
+     * @return steps of the longest episode;
+     *
+     * @throws RuntimeException when an episode or the listener throws, or when interrupted
+     *         while waiting;
+     */
+    int run (Individual[] individuals, int[] alive, int count, final Evaluation evaluation,
+             GenerationListener listener, int generation) {
+        // Set on the first failure, checked by the episodes between steps.
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        CompletionService<Integer> episodes = new ExecutorCompletionService<>(executor);
+        for (int k = 0; k < count; k++) {
+            final Individual individual = individuals[alive[k]];
+            episodes.submit(new Callable<Integer>() {
+                public Integer call () {
+                    int steps = 0;
+                    try {
+                        while (individual.isAlive()) {
+                            if (failed.get()) break;
+                            if (evaluation != null && evaluation.isStopped()) break;
+                            individual.updateSensors();
+                            individual.think();
+                            individual.move();
+                            steps++;
+                        }
+                    } catch (RuntimeException | Error e) {
+                        // Stop the others right away, not when this one is taken.
+                        failed.set(true);
+                        throw e;
+                    }
+                    return steps;
+                }
+            });
+        }
+
+        int longest = 0;
+        RuntimeException failure = null;
+        boolean interrupted = false;
+        int running = count;
+        while (running > 0) {
+            Future<Integer> episode;
+            try {
+                episode = episodes.take();
+            } catch (InterruptedException e) {
+                // Keep waiting for the episodes, they stop after their current step.
+                interrupted = true;
+                if (failure == null) {
+                    failure = new RuntimeException("Interrupted while running the episodes.", e);
+                }
+                failed.set(true);
+                continue;
+            }
+            running--;
+
+            try {
+                longest = Math.max(longest, episode.get());
+                if (failure == null && listener != null) {
+                    listener.stepDone(generation, longest, running);
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new RuntimeException("Episode failed.", e.getCause());
+                }
+                failed.set(true);
+            } catch (InterruptedException e) {
+                // Can't happen, the episode is done.
+                interrupted = true;
+            } catch (RuntimeException e) {
+                if (failure == null) failure = e;
+                failed.set(true);
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure != null) throw failure;
+        return longest;
+    }
+
+
+    /**
+     * Returns whether the episodes run on virtual threads.
+     *
+     * @return true on JDK 21 and later;
+     */
+    boolean isVirtual () {
+        return virtual;
+    }
+
+
+    /**
+     * Lets the running episodes finish and releases the threads.
+     */
+    void shutdown () {
+        executor.shutdown();
+    }
+
+}
@@ -0,0 +1,217 @@
+package com.tesladodger.neat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+
+/**
+ * Future of a generation evaluated in the background, see Population.evaluateGenerationAsync.
+ * It's only completed by the worker, as it exits, so once it's done the worker doesn't touch
+ * the population anymore. The one exception is cancelling from a listener, which runs on the
+ * worker, so it's done when the listener returns.
+ *
+ * Cancelling asks the worker to stop at the next step and waits for it to exit; it returns
+ * right away when called before the worker started, or from the worker itself (from a
+ * listener). Whatever the outcome, exited completes after the worker is gone, so the next
+ * evaluation can be chained after it.
+ *
+ * The methods that complete the future from outside throw UnsupportedOperationException, since
+ * the worker may still be running. The dependent stages made from it can be completed freely.
+ */
+class Evaluation extends CompletableFuture<GenerationStats> {
+
+    /* States of the worker. */
+    private static final int NEW = 0;
+    private static final int RUNNING = 1;
+    private static final int EXITED = 2;
+
+    private final AtomicInteger state;
+
+    /* Set by cancel, checked by the worker between steps. */
+    private volatile boolean stop;
+
+    /* Thread running the worker, while it runs. */
+    private volatile Thread worker;
+
+    /* Completed when the worker has exited, or when it was cancelled before starting. */
+    final CompletableFuture<Void> exited;
+
+
+    /**
+     * Constructor.
+     */
+    Evaluation () {
+        state = new AtomicInteger(NEW);
+        exited = new CompletableFuture<>();
+    }
+
+
+    /**
+     * Called by the worker before touching the population.
+     *
+     * @return false if it was cancelled before starting, and the worker must return;
+     */
+    boolean start () {
+        worker = Thread.currentThread();
+        if (!state.compareAndSet(NEW, RUNNING)) {
+            worker = null;
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Returns whether the worker was asked to stop.
+     *
+     * @return true after cancel;
+     */
+    boolean isStopped () {
+        return stop;
+    }
+
+
+    /**
+     * Called by the worker as it exits, when it's done with the population. Completes this
+     * future with the stats, the failure, or as cancelled when it stopped without stats, and
+     * then exited.
+     *
+     * @param stats of the generation, null when stopped or failed;
+     * @param failure thrown by the simulation, or null;
+     */
+    void exit (GenerationStats stats, Throwable failure) {
+        worker = null;
+        state.set(EXITED);
+
+        if (failure != null) {
+            super.completeExceptionally(failure);
+        }
+        else if (stats != null) {
+            super.complete(stats);
+        }
+        else {
+            super.cancel(false);
+        }
+        exited.complete(null);
+    }
+
+
+    /**
+     * Asks the worker to stop at the next step and waits for it to exit.
+     *
+     * @param mayInterruptIfRunning ignored, the worker is never interrupted;
+     *
+     * @return true if the evaluation ended cancelled;
+     */
+    @Override
+    public boolean cancel (boolean mayInterruptIfRunning) {
+        if (state.compareAndSet(NEW, EXITED)) {
+            exited.complete(null);
+            return super.cancel(false);
+        }
+
+        stop = true;
+        if (Thread.currentThread() == worker) {
+            // Called from a listener, the worker returns as soon as the listener does.
+            return super.cancel(false);
+        }
+        exited.join();
+        return isCancelled();
+    }
+
+
+
+    /**
+     * Not supported, only the worker completes an evaluation.
+     *
+     * @throws UnsupportedOperationException always;
+     */
+    @Override
+    public boolean complete (GenerationStats value) {
+        throw new UnsupportedOperationException("Only the worker completes an evaluation.");
+    }
+
+
+    /**
+     * Not supported, only the worker completes an evaluation.
+     *
+     * @throws UnsupportedOperationException always;
+     */
+    @Override
+    public boolean completeExceptionally (Throwable ex) {
+        throw new UnsupportedOperationException("Only the worker completes an evaluation.");
+    }
+
+
+    /**
+     * Not supported, only the worker completes an evaluation.
+     *
+     * @throws UnsupportedOperationException always;
+     */
+    @Override
+    public void obtrudeValue (GenerationStats value) {
+        throw new UnsupportedOperationException("Only the worker completes an evaluation.");
+    }
+
+
+    /**
+     * Not supported, only the worker completes an evaluation.
+     *
+     * @throws UnsupportedOperationException always;
+     */
+    @Override
+    public void obtrudeException (Throwable ex) {
+        throw new UnsupportedOperationException("Only the worker completes an evaluation.");
+    }
+
+
+    /* The methods below were added to CompletableFuture in Java 9. The library targets 8, so
+     * they can't be marked as overrides, but on newer JDKs they replace the inherited ones. */
+
+    /**
+     * Not supported, only the worker completes an evaluation.
+     *
+     * @throws UnsupportedOperationException always;
+     */
+    public CompletableFuture<GenerationStats> completeAsync (
+            Supplier<? extends GenerationStats> supplier, Executor executor) {
+        throw new UnsupportedOperationException("Only the worker completes an evaluation.");
+    }
+
+
+    /**
+     * Not supported, only the worker completes an evaluation.
+     *
+     * @throws UnsupportedOperationException always;
+     */
+    public CompletableFuture<GenerationStats> completeAsync (
+            Supplier<? extends GenerationStats> supplier) {
+        throw new UnsupportedOperationException("Only the worker completes an evaluation.");
+    }
+
+
+    /**
+     * Not supported, only the worker completes an evaluation.
+     *
+     * @throws UnsupportedOperationException always;
+     */
+    public CompletableFuture<GenerationStats> completeOnTimeout (GenerationStats value,
+                                                                 long timeout, TimeUnit unit) {
+        throw new UnsupportedOperationException("Only the worker completes an evaluation.");
+    }
+
+
+    /**
+     * Not supported, it would complete the evaluation when the time is up. Use get with a
+     * timeout to stop waiting instead.
+     *
+     * @throws UnsupportedOperationException always;
+     */
+    public CompletableFuture<GenerationStats> orTimeout (long timeout, TimeUnit unit) {
+        throw new UnsupportedOperationException("Only the worker completes an evaluation.");
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.tesladodger.neat;
+
+
+/**
+ * Receives the progress of a generation evaluated in the background, see
+ * Population.evaluateGenerationAsync. The methods are called from the thread running the
+ * evaluation, so they should be quick and can't touch the population.
+ */
+public interface GenerationListener {
+
+    /**
+     * Called after every step of the simulation. When the episodes run on their own threads
+     * there are no common steps, so it's called each time an episode ends instead.
+     *
+     * @param generation number of the generation being evaluated;
+     * @param step number of steps done, or of the longest episode that ended so far;
+     * @param alive individuals still alive, or episodes still running;
+     */
+    void stepDone (int generation, int step, int alive) ;
+
+}
@@ -0,0 +1,81 @@
+package com.tesladodger.neat;
+
+
+/**
+ * Summary of a generation, given when its asynchronous evaluation completes.
+ */
+public class GenerationStats {
+
+    /* Number of the generation that was evaluated. */
+    private final int generation;
+
+    /* Number of steps until every individual died. When the episodes ran on their own threads,
+     * the steps of the longest one. */
+    private final int steps;
+
+    /* Number of species after natural selection. */
+    private final int numberOfSpecies;
+
+    /* Best fitness of the generation, and the best of every generation so far. */
+    private final float bestScore;
+    private final float bestEverScore;
+
+    /* Compatibility threshold used for the next generation. */
+    private final float compatibilityThreshold;
+
+
+    /**
+     * Constructor.
+     *
+     * @param generation number of the evaluated generation;
+     * @param steps until every individual died;
+     * @param numberOfSpecies after natural selection;
+     * @param bestScore best fitness of the generation;
+     * @param bestEverScore best fitness so far;
+     * @param compatibilityThreshold for the next generation;
+     */
+    GenerationStats (int generation, int steps, int numberOfSpecies, float bestScore,
+                     float bestEverScore, float compatibilityThreshold) {
+        this.generation = generation;
+        this.steps = steps;
+        this.numberOfSpecies = numberOfSpecies;
+        this.bestScore = bestScore;
+        this.bestEverScore = bestEverScore;
+        this.compatibilityThreshold = compatibilityThreshold;
+    }
+
+    public int getGeneration () {
+        return generation;
+    }
+
+    public int getSteps () {
+        return steps;
+    }
+
+    public int getNumberOfSpecies () {
+        return numberOfSpecies;
+    }
+
+    public float getBestScore () {
+        return bestScore;
+    }
+
+    public float getBestEverScore () {
+        return bestEverScore;
+    }
+
+    public float getCompatibilityThreshold () {
+        return compatibilityThreshold;
+    }
+
+    @Override
+    public String toString () {
+        return "Generation: " + generation +
+                "  | Steps: " + steps +
+                "  | Number of species: " + numberOfSpecies +
+                "  | Best score: " + bestScore +
+                "  | Best ever: " + bestEverScore +
+                "  | Threshold: " + compatibilityThreshold;
+    }
+
+}
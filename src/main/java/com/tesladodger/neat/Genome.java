@@ -9,7 +9,7 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -37,13 +37,23 @@ public class Genome {
     /* Probability of adding a new connection. */
     public static float NEW_CONNECTION_PROBABILITY = 0.05f;
 
-    /* Map from innovation number to connection, and list of all numbers for random selection */
-    private Map<Integer, ConnectionGene> connections;
-    private List<Integer> connectionKeys;
+    /* Transfer function given to new genomes. */
+    public static Activation DEFAULT_ACTIVATION = Activation.STEEPENED_SIGMOID;
 
-    /* Map from id to node and list of all ids for random selection. */
-    private Map<Integer, NodeGene> nodes;
-    private List<Integer> nodeKeys;
+    /* Map from innovation number to connection, in insertion order for random selection. */
+    private IntMap<ConnectionGene> connections;
+
+    /* Map from id to node, in insertion order. The first inputNumber nodes are the inputs, in
+     * order, followed by the outputs. */
+    private IntMap<NodeGene> nodes;
+
+    /* Packed (in, out) node ids of every connection, see pair. */
+    private LongHashSet connectedPairs;
+
+    /* Number of nodes in each layer (the array can be longer than the number of layers) and the
+     * number of connections possible between them, updated as nodes are added. */
+    private int[] nodesInLayers;
+    private int maxConnections;
 
     /* Id of the bias node. */
     private int biasNode;
@@ -53,6 +63,22 @@ public class Genome {
     private int outputNumber;
     int layers;
 
+    /* Transfer function of the nodes that don't have their own. */
+    private Activation activation;
+
+    /* Compiled network used by feedForward. Null when it needs to be rebuilt. */
+    private Phenotype phenotype;
+
+    /* Innovation numbers of the connections in ascending order, and their weights. Used to
+     * compare genomes in a single pass. Null when they need to be rebuilt. */
+    private int[] sortedInnovations;
+    private float[] sortedWeights;
+
+    /* True when the nodes, connections and layer counts may be shared with a copy. Mutations
+     * copy them first, see ensureExclusive. Volatile because several threads can copy the same
+     * parent at once. */
+    private volatile boolean shared;
+
 
     /**
      * Constructor.
@@ -69,14 +95,16 @@ public class Genome {
         if (inputNumber < 1 || outputNumber < 1) throw new
                 IllegalArgumentException("Number of inputs and outputs must be natural numbers.");
 
-        connections = new HashMap<>();
-        connectionKeys = new ArrayList<>();
-        nodes = new HashMap<>();
-        nodeKeys = new ArrayList<>();
+        connections = new IntMap<>();
+        nodes = new IntMap<>();
+        connectedPairs = new LongHashSet();
+        nodesInLayers = new int[2];
+        maxConnections = 0;
 
         this.inputNumber = inputNumber;
         this.outputNumber = outputNumber;
         layers = 2;
+        activation = DEFAULT_ACTIVATION;
 
         if (fromCrossover) return;
 
@@ -97,29 +125,76 @@ public class Genome {
 
 
     /**
-     * Creates a deep copy of this genome.
+     * Copy constructor. The storage is shared, not copied.
+     *
+     * @param source genome to copy;
+     */
+    private Genome (Genome source) {
+        connections = source.connections;
+        nodes = source.nodes;
+        connectedPairs = source.connectedPairs;
+        nodesInLayers = source.nodesInLayers;
+        maxConnections = source.maxConnections;
+
+        biasNode = source.biasNode;
+        inputNumber = source.inputNumber;
+        outputNumber = source.outputNumber;
+        layers = source.layers;
+        activation = source.activation;
+        phenotype = source.phenotype;
+        sortedInnovations = source.sortedInnovations;
+        sortedWeights = source.sortedWeights;
+
+        shared = true;
+    }
+
+
+    /**
+     * Creates a copy of this genome. The copy is copy-on-write: both genomes share the nodes and
+     * connections until one of them is mutated, and only then the mutated one makes its own
+     * deep copy. Copies that are never mutated, like the elites and the reps, cost almost
+     * nothing.
      *
      * @return new genome;
      */
     public Genome copy () {
-        Genome clone = new Genome(inputNumber, outputNumber, true);
+        shared = true;
+        return new Genome(this);
+    }
 
-        // Add copies of the nodes to the copy genome.
-        for (NodeGene nodeGene : nodes.values()) {
-            clone.nodes.put(nodeGene.getId(), nodeGene.copy());
-            clone.nodeKeys.add(nodeGene.getId());
-        }
 
-        // Add copies of the connections to the copy genome.
-        for (ConnectionGene connectionGene : connections.values()) {
-            clone.connections.put(connectionGene.getInnovationNumber(), connectionGene.copy());
-            clone.connectionKeys.add(connectionGene.getInnovationNumber());
-        }
+    /**
+     * Makes a deep copy of the storage of this genome if it may be shared with another one. Must
+     * be called before changing any node or connection. The other genomes keep the old storage,
+     * which is never changed again while they still think it's shared.
+     */
+    private void ensureExclusive () {
+        if (!shared) return;
+        shared = false;
+
+        IntMap<NodeGene> oldNodes = nodes;
+        IntMap<ConnectionGene> oldConnections = connections;
+        nodes = new IntMap<>();
+        connections = new IntMap<>();
+        connectedPairs = new LongHashSet();
+        nodesInLayers = new int[nodesInLayers.length];
+        maxConnections = 0;
 
-        clone.biasNode = biasNode;
-        clone.layers = layers;
+        // The compiled network and sorted genes don't point at the storage, so they're kept.
+        Phenotype compiled = phenotype;
+        int[] innovations = sortedInnovations;
+        float[] weights = sortedWeights;
 
-        return clone;
+        for (NodeGene nodeGene : oldNodes) {
+            addNodeGene(nodeGene.copy());
+        }
+        for (ConnectionGene connectionGene : oldConnections) {
+            addConnectionGene(connectionGene.copy());
+        }
+
+        phenotype = compiled;
+        sortedInnovations = innovations;
+        sortedWeights = weights;
     }
 
 
@@ -129,7 +204,7 @@ public class Genome {
      * @param r Random;
      * @param innovation innovation number counter;
      */
-    public void mutate (Random r, Innovation innovation) {
+    public void mutate (Random r, InnovationHistory innovation) {
         // If there are no connections, connect all the inputs to the outputs.
         if (connections.size() == 0) {
             for (int i = 0; i < (inputNumber + 1) * outputNumber; i++) {
@@ -155,7 +230,10 @@ public class Genome {
      * @param r random;
      */
     private void weightMutation (Random r) {
-        for (ConnectionGene con : connections.values()) {
+        ensureExclusive();
+        changed();
+        for (int i = 0; i < connections.size(); i++) {
+            ConnectionGene con = connections.valueAt(i);
             if (r.nextFloat() < NEW_RANDOM_WEIGHT_PROBABILITY) {
                 con.setWeight(r.nextFloat() * 2f - 1f);
             } else {
@@ -168,28 +246,56 @@ public class Genome {
 
     /**
      * Mutates the genome by adding a new connection between previously unconnected nodes.
+     * Every pair of unconnected nodes in different layers is equally likely. Instead of picking
+     * random pairs until a valid one shows up, the candidates of each node are counted, so the
+     * cost is bounded by the number of nodes.
      *
      * @param r random;
      */
-    public void addConnectionMutation (Random r, Innovation innovation) {
+    public void addConnectionMutation (Random r, InnovationHistory innovation) {
         // No connections can be added to a fully connected network.
         if (isFullyConnected()) return;
-
-        NodeGene node1 = nodes.get(nodeKeys.get(r.nextInt(nodeKeys.size())));
-        NodeGene node2 = nodes.get(nodeKeys.get(r.nextInt(nodeKeys.size())));
-
-        // Keep picking nodes until they are good for connecting.
-        while (randomConnectionNodesAreShit(node1, node2)) {
-            node1 = nodes.get(nodeKeys.get(r.nextInt(nodeKeys.size())));
-            node2 = nodes.get(nodeKeys.get(r.nextInt(nodeKeys.size())));
+        ensureExclusive();
+
+        // Number of nodes in the layers after each layer.
+        int[] nodesInFront = new int[layers];
+        for (int l = layers - 2; l >= 0; l--) {
+            nodesInFront[l] = nodesInFront[l+1] + nodesInLayers[l+1];
+        }
+
+        // Connections only go forward, so a node can still connect to every node in front of it
+        // that isn't already one of its outputs.
+        int candidates = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            candidates += freeOutputs(nodes.valueAt(i), nodesInFront);
+        }
+        if (candidates == 0) return;
+        int pick = r.nextInt(candidates);
+
+        // Find the node that sends the picked connection.
+        NodeGene node1 = null;
+        for (int i = 0; i < nodes.size(); i++) {
+            NodeGene n = nodes.valueAt(i);
+            int free = freeOutputs(n, nodesInFront);
+            if (pick < free) {
+                node1 = n;
+                break;
+            }
+            pick -= free;
         }
 
-        // Check if the connection is reversed and swap the nodes.
-        if (node1.getLayer() > node2.getLayer()) {
-            NodeGene temp = node1;
-            node1 = node2;
-            node2 = temp;
+        // Find the node that receives it among the unconnected nodes in front of node1.
+        NodeGene node2 = null;
+        for (int i = 0; i < nodes.size(); i++) {
+            NodeGene n = nodes.valueAt(i);
+            if (n.getLayer() <= node1.getLayer()) continue;
+            if (connectedPairs.contains(pair(node1.getId(), n.getId()))) continue;
+            if (pick-- == 0) {
+                node2 = n;
+                break;
+            }
         }
+        if (node2 == null) return;
 
         // Random weight for the new connection.
         float weight = r.nextFloat()*2f - 1f;
@@ -198,38 +304,20 @@ public class Genome {
         int number = innovation.getInnovationNumber(node1.getId(), node2.getId());
 
         // Create the connection.
-        ConnectionGene newConnection = new ConnectionGene(node1.getId(), node2.getId(),
-                weight, true, number);
-        connections.put(newConnection.getInnovationNumber(), newConnection);
-        connectionKeys.add(newConnection.getInnovationNumber());
+        addConnectionGene(new ConnectionGene(node1.getId(), node2.getId(), weight, true, number));
     }
 
 
     /**
-     * Checks if two nodes cannot be connected.
+     * Counts the nodes a node can still send a new connection to.
      *
-     * @param n1 node;
-     * @param n2 node;
+     * @param n node;
+     * @param nodesInFront number of nodes in the layers after each layer;
      *
-     * @return boolean true if the nodes cannot be connected;
+     * @return number of unconnected nodes in front of n;
      */
-    private boolean randomConnectionNodesAreShit (NodeGene n1, NodeGene n2) {
-        // Check if the connection exists.
-        boolean connectionExists = false;
-        for (ConnectionGene con : connections.values()) {
-            if (con.getInNode() == n1.getId() && con.getOutNode() == n2.getId()) {
-                connectionExists = true;
-                break;
-            }
-            else if (con.getInNode() == n2.getId() && con.getOutNode() == n1.getId()) {
-                connectionExists = true;
-                break;
-            }
-        }
-        if (connectionExists) return true;
-
-        // Check if the nodes are in the same layer.
-        return (n1.getLayer() == n2.getLayer()) ;
+    private static int freeOutputs (NodeGene n, int[] nodesInFront) {
+        return Math.max(0, nodesInFront[n.getLayer()] - n.getOutgoing().size());
     }
 
 
@@ -238,14 +326,15 @@ public class Genome {
      *
      * @param r random;
      */
-    public void addNodeMutation (Random r, Innovation innovation) {
+    public void addNodeMutation (Random r, InnovationHistory innovation) {
+        ensureExclusive();
 
         // Pick a random connection.
-        ConnectionGene con = connections.get(connectionKeys.get(r.nextInt(connectionKeys.size())));
+        ConnectionGene con = connections.valueAt(r.nextInt(connections.size()));
 
         // Try not to separate the bias node.
         while (con.getInNode() == biasNode && connections.size() != 1) {
-            con = connections.get(connectionKeys.get(r.nextInt(connectionKeys.size())));
+            con = connections.valueAt(r.nextInt(connections.size()));
         }
 
         // Get the nodes from that connection.
@@ -254,6 +343,7 @@ public class Genome {
 
         // Disable the connection.
         con.disable();
+        changed();
 
         // Create a new hidden node. The layer is the inNode's layer + 1.
         NodeGene newNode = new NodeGene(NodeGene.TYPE.HIDDEN, nodes.size(), inNode.getLayer()+1);
@@ -262,12 +352,20 @@ public class Genome {
         // be created and all the nodes on the layer greater or equal to the output need to change
         // layer.
         if (newNode.getLayer() == outNode.getLayer()) {
-            for (NodeGene n : nodes.values()) {
+            for (int i = 0; i < nodes.size(); i++) {
+                NodeGene n = nodes.valueAt(i);
                 if (n.getLayer() >= newNode.getLayer()) {
                     n.incrementLayer();
                 }
             }
             layers++;
+
+            // The new layer starts empty. The possible connections don't change, since the nodes
+            // keep their order.
+            ensureLayerCapacity(layers);
+            System.arraycopy(nodesInLayers, newNode.getLayer(), nodesInLayers,
+                    newNode.getLayer() + 1, layers - 1 - newNode.getLayer());
+            nodesInLayers[newNode.getLayer()] = 0;
         }
 
         // The connection to the new node has a weight of 1 and the connection from it has the
@@ -288,30 +386,13 @@ public class Genome {
 
     /**
      * Returns whether this network is fully connected.
+     * The total number of connections is the sum of the product of the number of nodes in the
+     * layers and the number of nodes in subsequent layers, which is updated as nodes are added.
      *
      * @return true if fully connected;
      */
     public boolean isFullyConnected () {
-        // Each index contains the number of nodes the layer.
-        int[] nodesInLayers = new int[layers];
-
-        for (NodeGene n : nodes.values()) {
-            nodesInLayers[n.getLayer()] += 1;
-        }
-
-        // The total number of connections is the sum of the product of the number of nodes in the
-        // layers and the number of nodes in subsequent layers.
-        int totalConnections = 0;
-        for (int i = 0; i < layers-1; i++) {
-            int nodesInFront = 0;
-            for (int j = i+1; j < layers; j++) {
-                nodesInFront += nodesInLayers[j];
-            }
-            totalConnections += nodesInLayers[i] * nodesInFront;
-        }
-
-        // If the number of connections is already the total number possible, return true.
-        return connections.size() == totalConnections;
+        return connections.size() == maxConnections;
     }
 
 
@@ -326,54 +407,99 @@ public class Genome {
         if (inputs.length != inputNumber) throw new IllegalArgumentException("" +
                 "The input array must match the number of inputs of the network.");
 
-        // Order the nodes in an array by layer.
-        NodeGene[] orderedNodes = new NodeGene[nodes.size()];
-        int index = 0;
-        for (int l = 0; l < layers; l++) {
-            for (NodeGene n : nodes.values()) {
-                if (n.getLayer() == l) {
-                    // Reset the values of the node.
-                    n.reset();
-                    // Add it to the array.
-                    orderedNodes[index++] = n;
-                }
-            }
+        Phenotype network = getPhenotype();
+        float[] output = new float[outputNumber];
+        network.activate(inputs, output, new float[network.size()]);
+        return output;
+    }
+
+
+    /**
+     * Drops the compiled network and the sorted genes after any change to the genome.
+     */
+    private void changed () {
+        phenotype = null;
+        sortedInnovations = null;
+        sortedWeights = null;
+    }
+
+
+    /**
+     * Returns the innovation numbers of the connections of this genome, in ascending order.
+     *
+     * @return sorted innovation numbers, not to be modified;
+     */
+    int[] getSortedInnovations () {
+        if (sortedInnovations == null) sortGenes();
+        return sortedInnovations;
+    }
+
+
+    /**
+     * Returns the weights of the connections, in the order of getSortedInnovations.
+     *
+     * @return weights, not to be modified;
+     */
+    float[] getSortedWeights () {
+        if (sortedInnovations == null) sortGenes();
+        return sortedWeights;
+    }
+
+
+    /**
+     * Builds the sorted arrays of innovation numbers and weights.
+     */
+    private void sortGenes () {
+        int[] innovations = new int[connections.size()];
+        for (int i = 0; i < innovations.length; i++) {
+            innovations[i] = connections.keyAt(i);
         }
+        Arrays.sort(innovations);
 
-        // Set the values of the input nodes.
-        for (int i = 0; i < inputNumber; i++) {
-            // Use nodeKeys because they are ordered like the inputs.
-            nodes.get(nodeKeys.get(i)).addToInput(inputs[i]);
+        float[] weights = new float[innovations.length];
+        for (int i = 0; i < innovations.length; i++) {
+            weights[i] = connections.get(innovations[i]).getWeight();
         }
 
-        // Set the value of the bias node.
-        nodes.get(biasNode).addToInput(1);
+        sortedWeights = weights;
+        sortedInnovations = innovations;
+    }
 
-        // Create the list of connections for every node and engage it.
-        for (NodeGene n : orderedNodes) {
-            List<ConnectionGene> connectionsFromCurrentNode = new ArrayList<>();
-            for (ConnectionGene con : connections.values()) {
-                if (nodes.get(con.getInNode()) == n) {
-                    connectionsFromCurrentNode.add(con);
-                }
-            }
-            if (n.getType() != NodeGene.TYPE.OUTPUT) {
-                n.engage(connectionsFromCurrentNode, nodes);
-            }
-        }
 
-        // Get the values of the output nodes.
-        float[] output = new float[outputNumber];
-        index = 0;
-        for (int i = inputNumber; i < inputNumber + outputNumber; i++) {
-            // Again, use the keys.
-            output[index++] = nodes.get(nodeKeys.get(i)).getOutput();
+    /**
+     * Feeds several input patterns to the neural network at once.
+     *
+     * @param patterns n*m matrix where m is the number of patterns and n the number of inputs;
+     *
+     * @return the output of the neural network for each pattern;
+     */
+    public float[][] feedForward (float[][] patterns) {
+        for (float[] inputs : patterns) {
+            if (inputs.length != inputNumber) throw new IllegalArgumentException("" +
+                    "The input array must match the number of inputs of the network.");
         }
 
+        Phenotype network = getPhenotype();
+        float[][] output = new float[patterns.length][outputNumber];
+        network.activate(patterns, output, new float[network.size()][patterns.length]);
         return output;
     }
 
 
+    /**
+     * Returns the compiled network of this genome, compiling it if the genome changed since the
+     * last call.
+     *
+     * @return phenotype;
+     */
+    Phenotype getPhenotype () {
+        if (phenotype == null) {
+            phenotype = new Phenotype(this);
+        }
+        return phenotype;
+    }
+
+
     /**
      * Performs crossover between two genomes.
      *
@@ -387,23 +513,25 @@ public class Genome {
         Genome child = new Genome(parent1.inputNumber, parent1.outputNumber, true);
 
         // Take all the nodes from the fittest parent.
-        for (NodeGene p1Node : parent1.getNodes().values()) {
+        for (NodeGene p1Node : parent1.nodes) {
             child.addNodeGene(p1Node.copy());
         }
 
         child.layers = parent1.layers;
         child.biasNode = parent1.biasNode;
+        child.activation = parent1.activation;
 
         // Add the connections to the child.
-        for (ConnectionGene p1Con : parent1.connections.values()) {
-            if (parent2.getConnections().containsKey(p1Con.getInnovationNumber())) { // Matching gene
+        for (int i = 0; i < parent1.connections.size(); i++) {
+            ConnectionGene p1Con = parent1.connections.valueAt(i);
+            if (parent2.connections.containsKey(p1Con.getInnovationNumber())) { // Matching gene
                 // Create the connection.
                 ConnectionGene childConGene = new ConnectionGene(
                         p1Con.getInNode(), p1Con.getOutNode(),
                         p1Con.getWeight(), p1Con.isExpressed(), p1Con.getInnovationNumber());
 
                 // Disable the gene if either parent has it disabled.
-                if (!p1Con.isExpressed() || !parent2.getConnections().get(p1Con.getInnovationNumber()).isExpressed()) {
+                if (!p1Con.isExpressed() || !parent2.connections.get(p1Con.getInnovationNumber()).isExpressed()) {
                     if (r.nextFloat() < DISABLE_CONNECTION_PROBABILITY) {
                         childConGene.disable();
                     }
@@ -425,25 +553,166 @@ public class Genome {
     /* ------------------------------------------------------------------------  Utility methods */
 
     public void addNodeGene (NodeGene node) {
+        ensureExclusive();
+        changed();
         nodes.put(node.getId(), node);
-        nodeKeys.add(node.getId());
+
+        // The new node can connect to every node in the other layers.
+        ensureLayerCapacity(node.getLayer() + 1);
+        maxConnections += nodes.size() - 1 - nodesInLayers[node.getLayer()];
+        nodesInLayers[node.getLayer()]++;
     }
 
+    /**
+     * Grows the array of nodes per layer to hold at least the given number of layers.
+     *
+     * @param capacity number of layers;
+     */
+    private void ensureLayerCapacity (int capacity) {
+        if (nodesInLayers.length < capacity) {
+            nodesInLayers = Arrays.copyOf(nodesInLayers, Math.max(capacity, nodesInLayers.length * 2));
+        }
+    }
+
+    /**
+     * Adds a connection to this genome and links it to the nodes it connects.
+     *
+     * @param connection to add;
+     *
+     * @throws IllegalArgumentException when either node is not in this genome;
+     */
     public void addConnectionGene (ConnectionGene connection) {
+        ensureExclusive();
+        NodeGene inNode = nodes.get(connection.getInNode());
+        NodeGene outNode = nodes.get(connection.getOutNode());
+        if (inNode == null || outNode == null) throw new IllegalArgumentException("" +
+                "Both nodes of a connection must be added to the genome first.");
+
+        changed();
         connections.put(connection.getInnovationNumber(), connection);
-        connectionKeys.add(connection.getInnovationNumber());
+        connectedPairs.add(pair(connection.getInNode(), connection.getOutNode()));
+        inNode.getOutgoing().add(connection);
+        outNode.getIncoming().add(connection);
+    }
+
+    /**
+     * Gives the connections numbered -1 - k, while the child was made, their number k in the
+     * given array. The connections keep their order.
+     *
+     * @param numbers real innovation number of each temporary one;
+     */
+    void renumberConnections (int[] numbers) {
+        ensureExclusive();
+        changed();
+        IntMap<ConnectionGene> renumbered = new IntMap<>(connections.size());
+        for (ConnectionGene connection : connections) {
+            int number = connection.getInnovationNumber();
+            if (number < 0) {
+                connection.setInnovationNumber(numbers[-1 - number]);
+            }
+            renumbered.put(connection.getInnovationNumber(), connection);
+        }
+        connections = renumbered;
     }
 
-    private Map<Integer, NodeGene> getNodes () {
+    /**
+     * Packs the ids of the nodes of a connection in a long.
+     *
+     * @param inNode id;
+     * @param outNode id;
+     *
+     * @return key of the pair;
+     */
+    static long pair (int inNode, int outNode) {
+        return ((long) inNode << 32) | (outNode & 0xFFFFFFFFL);
+    }
+
+    IntMap<NodeGene> getNodes () {
         return nodes;
     }
 
+    public Activation getActivation () {
+        return activation;
+    }
+
+    /**
+     * Sets the transfer function of every node that doesn't have its own.
+     *
+     * @param activation function;
+     */
+    public void setActivation (Activation activation) {
+        changed();
+        this.activation = activation;
+    }
+
+    /**
+     * Sets the transfer function of a node, overriding the one of the genome. The node is made
+     * this genome's own first, so its copies keep theirs.
+     *
+     * @param nodeId id of the node;
+     * @param activation function, or null to use the one of the genome;
+     *
+     * @throws IllegalArgumentException when there's no node with that id;
+     */
+    public void setNodeActivation (int nodeId, Activation activation) {
+        if (!nodes.containsKey(nodeId)) throw new
+                IllegalArgumentException("There's no node " + nodeId + " in this genome.");
+
+        ensureExclusive();
+        changed();
+        nodes.get(nodeId).setActivation(activation);
+    }
+
+    int getBiasNode () {
+        return biasNode;
+    }
+
+    int getInputNumber () {
+        return inputNumber;
+    }
+
+    int getOutputNumber () {
+        return outputNumber;
+    }
+
+    /**
+     * Returns the connections of this genome, to be read or changed. The genes are made this
+     * genome's own first, so changing them doesn't change its copies, and the compiled network
+     * is dropped, so weights set on them are seen by the next feedForward; after that, ask for
+     * the connections again before changing them. The map itself is read-only, and iterated in
+     * the order the connections were added.
+     *
+     * @return map from innovation number to connection;
+     */
     public Map<Integer, ConnectionGene> getConnections () {
-        return connections;
+        ensureExclusive();
+        changed();
+        return connections.asMap();
     }
 
+    /**
+     * Returns the innovation numbers of the connections, in the order they were added.
+     *
+     * @return new list of innovation numbers;
+     *
+     * @deprecated use getConnections().keySet(), which has the same order;
+     */
+    @Deprecated
     public List<Integer> getConnectionKeys () {
-        return connectionKeys;
+        List<Integer> keys = new ArrayList<>(connections.size());
+        for (int i = 0; i < connections.size(); i++) {
+            keys.add(connections.keyAt(i));
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the connections of this genome, only to be read.
+     *
+     * @return map from innovation number to connection;
+     */
+    IntMap<ConnectionGene> getConnectionGenes () {
+        return connections;
     }
 
 
@@ -458,7 +727,7 @@ public class Genome {
         // Print the nodes in layers.
         for (int i = genome.layers-1; i >= 0; i--) {
             System.out.print("\n Layer " + i + " : ");
-            for (NodeGene n : genome.nodes.values()) {
+            for (NodeGene n : genome.nodes) {
                 if (n.getLayer() == i) {
                     System.out.printf("  %2s %-6s  ", n.getId(), n.getType());
                 }
@@ -474,22 +743,20 @@ public class Genome {
         }
         System.out.println();
 
-        for (Integer conKey : genome.connectionKeys) {
-            System.out.printf("|  %3s   ", genome.connections.get(conKey).getInnovationNumber());
+        for (ConnectionGene con : genome.connections) {
+            System.out.printf("|  %3s   ", con.getInnovationNumber());
         }
         System.out.println("|");
-        for (Integer conKey : genome.connectionKeys) {
-            System.out.printf("| %2s->%2s ",
-                    genome.connections.get(conKey).getInNode(),
-                    genome.connections.get(conKey).getOutNode());
+        for (ConnectionGene con : genome.connections) {
+            System.out.printf("| %2s->%2s ", con.getInNode(), con.getOutNode());
         }
         System.out.println("|");
-        for (Integer conKey : genome.connectionKeys) {
-            System.out.printf("| %5s  ", genome.connections.get(conKey).isExpressed() ? " " : "DISAB");
+        for (ConnectionGene con : genome.connections) {
+            System.out.printf("| %5s  ", con.isExpressed() ? " " : "DISAB");
         }
         System.out.println("|");
-        for (Integer conKey : genome.connectionKeys) {
-            System.out.printf("|%8.5f", genome.connections.get(conKey).getWeight());
+        for (ConnectionGene con : genome.connections) {
+            System.out.printf("|%8.5f", con.getWeight());
         }
         System.out.println("|");
         System.out.println();
@@ -506,7 +773,7 @@ public class Genome {
         try {
             Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.UTF_8));
 
-            for (ConnectionGene con : genome.connections.values()) {
+            for (ConnectionGene con : genome.connections) {
                 if (!con.isExpressed()) continue;
 
                 writer.write(con.getInnovationNumber() + ", ");
@@ -539,29 +806,35 @@ public class Genome {
 
         List<Integer[]> nodeCoords = new ArrayList<>();
         List<Integer> nodeIds = new ArrayList<>();
+        IntMap<Integer[]> coordsById = new IntMap<>();
+
+        // Separate the nodes by layer.
+        List<List<NodeGene>> nodesInLayers = new ArrayList<>();
+        for (int i = 0; i < genome.layers; i++) {
+            nodesInLayers.add(new ArrayList<NodeGene>());
+        }
+        for (NodeGene node : genome.nodes) {
+            nodesInLayers.get(node.getLayer()).add(node);
+        }
 
         // Loop all the layers.
         for (int i = 0; i < genome.layers; i++){
-            // Find all the nodes in the current layer and add them to a list.
-            List<NodeGene> nodesInLayer = new ArrayList<>();
-            for (NodeGene node : genome.nodes.values()) {
-                if (node.getLayer() == i) {
-                    nodesInLayer.add(node);
-                }
-            }
-            // Loop the created list and add the ids and coordinates to the corresponding lists.
+            List<NodeGene> nodesInLayer = nodesInLayers.get(i);
+            // Loop the nodes of the layer and add the ids and coordinates to the corresponding lists.
             int x = ((i+1)*s) / (genome.layers+1);
             for (int j = 0; j < nodesInLayer.size(); j++) {
                 int y = ((j+1)*s) / (nodesInLayer.size()+1);
-                nodeCoords.add(new Integer[] {x, y});
+                Integer[] coords = new Integer[] {x, y};
+                nodeCoords.add(coords);
                 nodeIds.add(nodesInLayer.get(j).getId());
+                coordsById.put(nodesInLayer.get(j).getId(), coords);
             }
         }
 
         // Draw the connections.
-        for (ConnectionGene con : genome.connections.values()) {
-            Integer[] from = nodeCoords.get(nodeIds.indexOf(con.getInNode()));
-            Integer[] to = nodeCoords.get(nodeIds.indexOf(con.getOutNode()));
+        for (ConnectionGene con : genome.connections) {
+            Integer[] from = coordsById.get(con.getInNode());
+            Integer[] to = coordsById.get(con.getOutNode());
 
             if (!con.isExpressed()) continue;
             else if (con.getWeight() >= 0) {
@@ -19,6 +19,12 @@ public class Individual{
     private float[][] sensors;
     private float[][] controls;
 
+    /* Scratch for the values of the network, reused every step: one value per node for a single
+     * pattern, or one row per node for a batch. Only grow when the topology or the number of
+     * patterns needs more room. */
+    private float[] values;
+    private float[][] rows;
+
     private int numSensors;
     private int numControls;
 
@@ -52,6 +58,27 @@ public class Individual{
     }
 
 
+    /**
+     * Copy of this individual with a copy of the genome, that still shares the behavior. Used
+     * for children made on the worker threads, see ownBehavior.
+     *
+     * @return new individual sharing the behavior;
+     */
+    Individual copySharingBehavior () {
+        Individual clone = new Individual(brain.copy(), numSensors, numControls, behavior);
+        clone.fitness = fitness;
+        return clone;
+    }
+
+
+    /**
+     * Replaces a behavior shared with the parent by a copy of its own.
+     */
+    void ownBehavior () {
+        behavior = behavior.copy();
+    }
+
+
     /**
      * Deep copy of this individual for replay.
      *
@@ -70,11 +97,34 @@ public class Individual{
     }
 
     void think () {
-        controls = new float[sensors.length][numControls];
-        int i = 0;
         for (float[] pattern : sensors) {
-            controls[i++] = brain.feedForward(pattern);
+            if (pattern.length != numSensors) throw new IllegalArgumentException("" +
+                    "The input array must match the number of inputs of the network.");
+        }
+
+        // Reuse the buffers of the previous step when they are big enough.
+        Phenotype network = brain.getPhenotype();
+        if (controls == null || controls.length != sensors.length) {
+            controls = new float[sensors.length][numControls];
+        }
+
+        // Too few patterns for a batch, feed them one by one.
+        if (sensors.length < Phenotype.MIN_BATCH) {
+            if (values == null || values.length < network.size()) {
+                values = new float[network.size()];
+            }
+            for (int j = 0; j < sensors.length; j++) {
+                network.activate(sensors[j], controls[j], values);
+            }
+            return;
+        }
+
+        if (rows == null || rows.length < network.size() || rows[0].length < sensors.length) {
+            rows = new float[network.size()][sensors.length];
         }
+
+        // All the patterns go through the network together.
+        network.activate(sensors, controls, rows);
     }
 
     void move () {
@@ -82,6 +132,18 @@ public class Individual{
         alive = behavior.isAlive();
     }
 
+    /**
+     * Estimated work of a step: every node is activated and every connection propagated once
+     * per pattern. The number of patterns is taken from the last step. Uses the genome, so the
+     * network doesn't need to be compiled yet.
+     *
+     * @return estimated cost of the next step;
+     */
+    long stepCost () {
+        int patterns = sensors == null ? 1 : sensors.length;
+        return (long) (brain.getNodes().size() + brain.getConnectionGenes().size()) * patterns;
+    }
+
     boolean isSolution () {
         return behavior.solutionFound();
     }
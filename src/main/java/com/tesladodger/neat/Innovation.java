@@ -1,66 +1,87 @@
 package com.tesladodger.neat;
 
-import java.util.ArrayList;
-import java.util.List;
-
 
 /**
  * When a connection is created, the ids of the input and output node are checked against all
  * connections previously created. If it exists, the innovation number of that connection is
  * returned. If a new one was created, it is added to the history and the next number is
  * returned.
+ *
+ * The history is a hash index from the pair of node ids to the number, so lookups don't depend
+ * on how many innovations there are. Every call takes the lock of this object; for mutation on
+ * many threads at once, use ConcurrentInnovation.
  */
-public class Innovation {
+public class Innovation extends InnovationHistory {
 
-    /**
-     * Class to hold the simple values of a connection:
-     * c -> innovation number;
-     * i -> in node id;
-     * o -> out node id;
-     */
-    private class CIO {
-        int c;
-        int i;
-        int o;
-        CIO (int c, int i, int o) {
-            this.c = c;
-            this.i = i;
-            this.o = o;
-        }
-    }
+    /* Innovation number of each pair of node ids. */
+    private final LongIntMap history;
 
-    private List<CIO> history;
+    /* Next innovation number. */
+    private int counter;
 
 
     /**
      * Constructor.
      */
     public Innovation () {
-        history = new ArrayList<>();
+        history = new LongIntMap();
     }
 
     /**
      * Method to get the innovation number of a new connection. If the connection exists, that
      * number is returned, otherwise a new connection is added to the history and the next value
-     * is returned.
+     * is returned. Synchronized, since children are made by several threads.
      *
      * @param i id of the input node;
      * @param o id of the output node;
      *
      * @return the innovation number of the connection;
      */
-    int getInnovationNumber (int i, int o) {
-        for (CIO cio : history) {
-            // If a match is found, return the innovation number of that match.
-            if (cio.i == i && cio.o == o) {
-                return cio.c;
-            }
-        }
+    @Override
+    synchronized int getInnovationNumber (int i, int o) {
+        long key = Genome.pair(i, o);
+        int number = history.get(key, -1);
 
         // No match found, create a new number and add it to the history.
-        int number = history.size();
-        history.add(new CIO(number, i, o));
+        if (number < 0) {
+            number = counter++;
+            history.put(key, number);
+        }
         return number;
     }
 
+
+    @Override
+    synchronized int getExistingNumber (int i, int o) {
+        return history.get(Genome.pair(i, o), -1);
+    }
+
+
+    /**
+     * Forgets the pairs that are not used anymore, keeping the counter.
+     *
+     * @param used pairs of node ids (see Genome.pair) of every connection still in use;
+     */
+    @Override
+    synchronized void retainAll (LongHashSet used) {
+        history.retainAll(used);
+    }
+
+
+    @Override
+    synchronized int capacity () {
+        return history.capacity();
+    }
+
+
+    /**
+     * Returns how many innovation numbers were given.
+     *
+     * @return number of innovations;
+     */
+    @Override
+    public synchronized int size () {
+        return counter;
+    }
+
 }
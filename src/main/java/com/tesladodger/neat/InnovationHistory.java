@@ -0,0 +1,68 @@
+package com.tesladodger.neat;
+
+
+/**
+ * History of the connections created so far, which gives the same innovation number to the
+ * same connection in every genome. Innovation is the plain one, ConcurrentInnovation the one for
+ * mutation on many threads at once; either can be passed wherever a history is needed.
+ */
+public abstract class InnovationHistory {
+
+    /**
+     * Constructor, only for the implementations in this package.
+     */
+    InnovationHistory () {}
+
+
+    /**
+     * Method to get the innovation number of a new connection. If the connection exists, that
+     * number is returned, otherwise a new connection is added to the history and the next value
+     * is returned. Called by several threads at once when making children.
+     *
+     * @param i id of the input node;
+     * @param o id of the output node;
+     *
+     * @return the innovation number of the connection;
+     */
+    abstract int getInnovationNumber (int i, int o) ;
+
+
+    /**
+     * Returns the innovation number of a connection already in the history, without adding it.
+     *
+     * @param i id of the input node;
+     * @param o id of the output node;
+     *
+     * @return the innovation number of the connection, or -1 if it's not in the history;
+     */
+    abstract int getExistingNumber (int i, int o) ;
+
+
+    /**
+     * Forgets the pairs that are not used anymore. The counter is kept, so the numbers of the
+     * pairs left don't change and new pairs never reuse a number. A pair that was forgotten and
+     * shows up again gets a new number, which is fine as long as no genome still has the old
+     * one.
+     *
+     * @param used pairs of node ids (see Genome.pair) of every connection still in use;
+     */
+    abstract void retainAll (LongHashSet used) ;
+
+
+    /**
+     * Returns how many slots the index of the history takes, to see how much memory pruning
+     * gives back.
+     *
+     * @return number of slots;
+     */
+    abstract int capacity () ;
+
+
+    /**
+     * Returns how many innovation numbers were given.
+     *
+     * @return number of innovations;
+     */
+    public abstract int size () ;
+
+}
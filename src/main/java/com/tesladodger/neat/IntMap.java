@@ -0,0 +1,262 @@
+package com.tesladodger.neat;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ * Map from primitive int keys to values, used to store the genes of a genome without boxing.
+ * Entries are kept in insertion order in dense arrays, so they can be picked at random or looped
+ * by index, and an open addressing table maps each key to its index. Entries can't be removed.
+ *
+ * @param <V> type of the values;
+ */
+public final class IntMap<V> implements Iterable<V> {
+
+    /* Keys and values in insertion order. */
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    /* Open addressing table with linear probing. Each slot holds index + 1, or 0 when empty. */
+    private int[] table;
+    private int mask;
+
+
+    /**
+     * Constructor.
+     */
+    IntMap () {
+        this(8);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param capacity number of entries to make room for;
+     */
+    IntMap (int capacity) {
+        capacity = Math.max(capacity, 8);
+        keys = new int[capacity];
+        values = new Object[capacity];
+
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        table = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+
+    /**
+     * Associates a value with a key. If the key is already in the map, its value is replaced and
+     * keeps its index.
+     *
+     * @param key of the entry;
+     * @param value of the entry;
+     */
+    void put (int key, V value) {
+        int slot = slot(key);
+        while (table[slot] != 0) {
+            int i = table[slot] - 1;
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        table[slot] = ++size;
+
+        // Keep the load factor under one half.
+        if (size * 2 > table.length) rehash(table.length * 2);
+    }
+
+
+    /**
+     * Returns the value associated with a key.
+     *
+     * @param key of the entry;
+     *
+     * @return value, or null if the key is not in the map;
+     */
+    @SuppressWarnings("unchecked")
+    public V get (int key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+
+    /**
+     * Returns whether a key is in the map.
+     *
+     * @param key of the entry;
+     *
+     * @return true if the key is in the map;
+     */
+    public boolean containsKey (int key) {
+        return indexOf(key) >= 0;
+    }
+
+
+    /**
+     * Returns the insertion index of a key.
+     *
+     * @param key of the entry;
+     *
+     * @return index of the entry, or -1 if the key is not in the map;
+     */
+    public int indexOf (int key) {
+        int slot = slot(key);
+        while (table[slot] != 0) {
+            int i = table[slot] - 1;
+            if (keys[i] == key) return i;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Returns the key of the entry at an index.
+     *
+     * @param i index, in insertion order;
+     *
+     * @return key;
+     */
+    public int keyAt (int i) {
+        if (i >= size) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        return keys[i];
+    }
+
+
+    /**
+     * Returns the value of the entry at an index.
+     *
+     * @param i index, in insertion order;
+     *
+     * @return value;
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt (int i) {
+        if (i >= size) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        return (V) values[i];
+    }
+
+
+    public int size () {
+        return size;
+    }
+
+
+    /**
+     * Iterates the values in insertion order.
+     *
+     * @return iterator;
+     */
+    public Iterator<V> iterator () {
+        return new Iterator<V>() {
+            private int i = 0;
+
+            public boolean hasNext () {
+                return i < size;
+            }
+
+            public V next () {
+                if (i >= size) throw new NoSuchElementException();
+                return valueAt(i++);
+            }
+        };
+    }
+
+
+    /**
+     * Returns a read-only Map view of this map, iterated in insertion order. Looking up a key
+     * boxes it, but doesn't copy anything.
+     *
+     * @return view;
+     */
+    Map<Integer, V> asMap () {
+        return new AbstractMap<Integer, V>() {
+            @Override
+            public V get (Object key) {
+                return key instanceof Integer ? IntMap.this.get((Integer) key) : null;
+            }
+
+            @Override
+            public boolean containsKey (Object key) {
+                return key instanceof Integer && IntMap.this.containsKey((Integer) key);
+            }
+
+            @Override
+            public int size () {
+                return size;
+            }
+
+            @Override
+            public Set<Entry<Integer, V>> entrySet () {
+                return new AbstractSet<Entry<Integer, V>>() {
+                    public int size () {
+                        return size;
+                    }
+
+                    public Iterator<Entry<Integer, V>> iterator () {
+                        return new Iterator<Entry<Integer, V>>() {
+                            private int i = 0;
+
+                            public boolean hasNext () {
+                                return i < size;
+                            }
+
+                            public Entry<Integer, V> next () {
+                                if (i >= size) throw new NoSuchElementException();
+                                Entry<Integer, V> entry =
+                                        new SimpleImmutableEntry<>(keys[i], valueAt(i));
+                                i++;
+                                return entry;
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+
+    /**
+     * Rebuilds the table with a new size.
+     *
+     * @param tableSize power of two;
+     */
+    private void rehash (int tableSize) {
+        table = new int[tableSize];
+        mask = tableSize - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = slot(keys[i]);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+
+    /**
+     * First slot of a key, from a multiplicative hash.
+     */
+    private int slot (int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.tesladodger.neat;
+
+
+/**
+ * Set of primitive longs with open addressing and linear probing. Elements can't be removed.
+ * Used to index pairs of node ids packed in a long, without boxing.
+ */
+final class LongHashSet {
+
+    /* Marks an empty slot. The free key itself is tracked with a flag. */
+    private static final long FREE = 0L;
+
+    private long[] keys;
+    private boolean containsFree;
+    private int size;
+
+    /* keys.length - 1, the length is always a power of two. */
+    private int mask;
+
+
+    /**
+     * Constructor.
+     */
+    LongHashSet () {
+        keys = new long[16];
+        mask = keys.length - 1;
+    }
+
+
+    /**
+     * Adds a value to the set.
+     *
+     * @param key value;
+     *
+     * @return true if the value was not in the set;
+     */
+    boolean add (long key) {
+        if (key == FREE) {
+            if (containsFree) return false;
+            containsFree = true;
+            size++;
+            return true;
+        }
+
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key) return false;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+
+        // Keep the load factor under one half.
+        if (++size * 2 > keys.length) grow();
+        return true;
+    }
+
+
+    /**
+     * Checks if a value is in the set.
+     *
+     * @param key value;
+     *
+     * @return true if the value is in the set;
+     */
+    boolean contains (long key) {
+        if (key == FREE) return containsFree;
+
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key) return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+
+    int size () {
+        return size;
+    }
+
+
+    /**
+     * Doubles the table and reinserts every key.
+     */
+    private void grow () {
+        long[] old = keys;
+        keys = new long[old.length * 2];
+        mask = keys.length - 1;
+        for (long key : old) {
+            if (key == FREE) continue;
+            int i = slot(key);
+            while (keys[i] != FREE) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+        }
+    }
+
+
+    /**
+     * First slot of a key, from a multiplicative hash folded to 32 bits.
+     */
+    private int slot (long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+}
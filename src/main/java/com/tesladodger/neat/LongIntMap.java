@@ -0,0 +1,171 @@
+package com.tesladodger.neat;
+
+
+/**
+ * Map of primitive long keys to int values with open addressing and linear probing. Entries
+ * can't be removed. Used to index pairs of node ids packed in a long, without boxing.
+ */
+final class LongIntMap {
+
+    /* Marks an empty slot. The free key itself is tracked with a flag. */
+    private static final long FREE = 0L;
+
+    private long[] keys;
+    private int[] values;
+    private boolean containsFree;
+    private int freeValue;
+    private int size;
+
+    /* keys.length - 1, the length is always a power of two. */
+    private int mask;
+
+
+    /**
+     * Constructor.
+     */
+    LongIntMap () {
+        keys = new long[16];
+        values = new int[16];
+        mask = keys.length - 1;
+    }
+
+
+    /**
+     * Returns the value of a key.
+     *
+     * @param key to look for;
+     * @param missing value returned when the key is not in the map;
+     *
+     * @return value of the key, or missing;
+     */
+    int get (long key, int missing) {
+        if (key == FREE) return containsFree ? freeValue : missing;
+
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key) return values[i];
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+
+    /**
+     * Sets the value of a key, adding it if it's not in the map.
+     *
+     * @param key to set;
+     * @param value of the key;
+     */
+    void put (long key, int value) {
+        if (key == FREE) {
+            if (!containsFree) size++;
+            containsFree = true;
+            freeValue = value;
+            return;
+        }
+
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+
+        // Keep the load factor under one half.
+        if (++size * 2 > keys.length) grow();
+    }
+
+
+    int size () {
+        return size;
+    }
+
+
+    /**
+     * Removes every entry whose key is not in a set, rebuilding the table at the smallest size
+     * that holds what is left. The size comes from the entries of this map that survive, not
+     * from the set, which may hold many keys of other maps.
+     *
+     * @param keep keys to keep;
+     */
+    void retainAll (LongHashSet keep) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+
+        // Move the entries that survive to the front of the old table, it's not used anymore.
+        int survivors = 0;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == FREE || !keep.contains(oldKeys[j])) continue;
+            oldKeys[survivors] = oldKeys[j];
+            oldValues[survivors] = oldValues[j];
+            survivors++;
+        }
+
+        int capacity = 16;
+        while (capacity < survivors * 2) {
+            capacity *= 2;
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+
+        if (containsFree && !keep.contains(FREE)) {
+            containsFree = false;
+        }
+        size = containsFree ? survivors + 1 : survivors;
+
+        for (int j = 0; j < survivors; j++) {
+            int i = slot(oldKeys[j]);
+            while (keys[i] != FREE) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+
+    /**
+     * Returns the number of slots of the table.
+     *
+     * @return length of the table;
+     */
+    int capacity () {
+        return keys.length;
+    }
+
+
+    /**
+     * Doubles the table and reinserts every entry.
+     */
+    private void grow () {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == FREE) continue;
+            int i = slot(oldKeys[j]);
+            while (keys[i] != FREE) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+
+    /**
+     * First slot of a key, from a multiplicative hash folded to 32 bits.
+     */
+    private int slot (long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.tesladodger.neat;
+
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Fills the empty slots of the next generation with children, splitting the array between the
+ * specified number of threads with a resultless Fork-Join task. Each slot has the species that
+ * breeds it and its own random stream, derived from the generation seed and the slot index, so
+ * the children don't depend on how the slots are split or in which order they are made.
+ *
+ * The parents are only read, and the children share the behavior of their parent until the
+ * population copies it on its own thread. The shared innovation history is only read while the
+ * children are made; the connections it doesn't have get a temporary number from the history of
+ * their slot (see DeferredInnovation). Once every child is made, the root task adds them to the
+ * shared history slot by slot, so the numbers are the same for any number of threads, and the
+ * same a single thread asking for them one child after the other would get.
+ */
+class MultiThreadedReproduction extends RecursiveAction {
+
+    private final Individual[] nextGen;
+
+    /* Species that breeds the child of each slot, null for the slots already filled. */
+    private final Species[] parents;
+
+    /* Seed of the generation, mixed with the index of each slot. */
+    private final long seed;
+
+    private final InnovationHistory innovation;
+
+    /* History each child was made with, to number its new connections at the end. */
+    private final DeferredInnovation[] slotInnovations;
+
+    /* Low and High indexes this thread is working with. */
+    private final int lo, hi;
+
+    /* Number of slots / number of threads, as specified. */
+    private final int subSize;
+
+    /**
+     * Initial Constructor.
+     *
+     * @param nextGen array of the next generation;
+     * @param parents species that breeds each slot;
+     * @param seed of the generation;
+     * @param innovation innovation number generator;
+     * @param threadNumber # of threads;
+     */
+    MultiThreadedReproduction (Individual[] nextGen, Species[] parents, long seed,
+                               InnovationHistory innovation, int threadNumber) {
+        this(nextGen, parents, seed, innovation, new DeferredInnovation[nextGen.length],
+                0, nextGen.length, Math.max(1, nextGen.length/threadNumber));
+    }
+
+    /**
+     * Recursive Constructor.
+     *
+     * @param nextGen array of the next generation;
+     * @param parents species that breeds each slot;
+     * @param seed of the generation;
+     * @param innovation innovation number generator;
+     * @param slotInnovations history of each slot;
+     * @param lo index;
+     * @param hi index;
+     * @param subSize # slots / thread;
+     */
+    private MultiThreadedReproduction (Individual[] nextGen, Species[] parents, long seed,
+                                       InnovationHistory innovation,
+                                       DeferredInnovation[] slotInnovations,
+                                       int lo, int hi, int subSize) {
+        this.nextGen = nextGen;
+        this.parents = parents;
+        this.seed = seed;
+        this.innovation = innovation;
+        this.slotInnovations = slotInnovations;
+        this.lo = lo;
+        this.hi = hi;
+        this.subSize = subSize;
+    }
+
+    /**
+     * Implementation of the abstract method.
+     * When the sub array is small enough, the singleThreadReproduce method is called. The root
+     * task then numbers the new connections.
+     */
+    protected void compute () {
+        if (hi - lo <= subSize) {
+            singleThreadReproduce(lo, hi);
+        }
+        else {
+            int mid = (lo + hi) >>> 1;
+            invokeAll(
+                    new MultiThreadedReproduction(nextGen, parents, seed, innovation,
+                            slotInnovations, lo, mid, subSize),
+                    new MultiThreadedReproduction(nextGen, parents, seed, innovation,
+                            slotInnovations, mid, hi, subSize));
+        }
+
+        if (lo == 0 && hi == nextGen.length) {
+            for (int i = 0; i < nextGen.length; i++) {
+                if (parents[i] != null) {
+                    slotInnovations[i].numberConnections(nextGen[i].getBrain());
+                }
+            }
+        }
+    }
+
+    /**
+     * Loops the sub array, making a child for every slot that has a parent species.
+     *
+     * @param lo index;
+     * @param hi index;
+     */
+    private void singleThreadReproduce (int lo, int hi) {
+        for (int i = lo; i < hi; i++) {
+            if (parents[i] != null) {
+                slotInnovations[i] = new DeferredInnovation(innovation);
+                nextGen[i] = parents[i].makeAChild(new Random(slotSeed(seed, i)),
+                        slotInnovations[i]);
+            }
+        }
+    }
+
+    /**
+     * Seed of the random stream of a slot. The finalizer of SplitMix64, so close slots get
+     * unrelated streams.
+     *
+     * @param seed of the generation;
+     * @param slot index;
+     *
+     * @return seed of the slot;
+     */
+    static long slotSeed (long seed, int slot) {
+        long z = seed + (slot + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.tesladodger.neat;
+
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Finds the first species that accepts each individual, splitting the population array between
+ * the specified number of threads with a resultless Fork-Join task. Only reads the species, so
+ * the individuals are added to them afterwards, in order, by the population.
+ */
+class MultiThreadedSpeciation extends RecursiveAction {
+
+    private final Individual[] individuals;
+
+    /* Species to test, in order. */
+    private final Species[] species;
+
+    /* Index of the first species that accepts each individual, or -1. */
+    private final int[] matches;
+
+    /* Compatibility threshold used by the population. */
+    private final float threshold;
+
+    /* Low and High indexes this thread is working with. */
+    private final int lo, hi;
+
+    /* Number of individuals / number of threads, as specified. */
+    private final int subSize;
+
+    /**
+     * Initial Constructor.
+     *
+     * @param individuals array;
+     * @param species to test, in order;
+     * @param matches array where the index of the accepting species is written;
+     * @param threshold compatibility threshold;
+     * @param threadNumber # of threads;
+     */
+    MultiThreadedSpeciation (Individual[] individuals, Species[] species, int[] matches,
+                             float threshold, int threadNumber) {
+        this(individuals, species, matches, threshold, 0, individuals.length,
+                Math.max(1, individuals.length/threadNumber));
+    }
+
+    /**
+     * Recursive Constructor.
+     *
+     * @param individuals array;
+     * @param species to test, in order;
+     * @param matches array where the index of the accepting species is written;
+     * @param threshold compatibility threshold;
+     * @param lo index;
+     * @param hi index;
+     * @param subSize # individuals / thread;
+     */
+    private MultiThreadedSpeciation (Individual[] individuals, Species[] species, int[] matches,
+                                     float threshold, int lo, int hi, int subSize) {
+        this.individuals = individuals;
+        this.species = species;
+        this.matches = matches;
+        this.threshold = threshold;
+        this.lo = lo;
+        this.hi = hi;
+        this.subSize = subSize;
+    }
+
+    /**
+     * Implementation of the abstract method.
+     * When the sub array is small enough, the singleThreadMatch method is called.
+     */
+    protected void compute () {
+        if (hi - lo <= subSize) {
+            singleThreadMatch(lo, hi);
+        }
+        else {
+            int mid = (lo + hi) >>> 1;
+            invokeAll(
+                    new MultiThreadedSpeciation(individuals, species, matches, threshold,
+                            lo, mid, subSize),
+                    new MultiThreadedSpeciation(individuals, species, matches, threshold,
+                            mid, hi, subSize));
+        }
+    }
+
+    /**
+     * Loops the sub array, testing each individual against the species in order.
+     *
+     * @param lo index;
+     * @param hi index;
+     */
+    private void singleThreadMatch (int lo, int hi) {
+        for (int i = lo; i < hi; i++) {
+            matches[i] = -1;
+            for (int s = 0; s < species.length; s++) {
+                if (species[s].canAccept(individuals[i].getBrain(), threshold)) {
+                    matches[i] = s;
+                    break;
+                }
+            }
+        }
+    }
+
+}
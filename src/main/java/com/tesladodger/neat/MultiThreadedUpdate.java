@@ -4,73 +4,134 @@ import java.util.concurrent.RecursiveAction;
 
 
 /**
- * Given the specified number of threads, the population array is updated in parallel using a
- * resultless Fork-Join task.
+ * Given the specified number of threads, the alive individuals are updated in parallel using a
+ * resultless Fork-Join task. The task goes through the compacted index of alive individuals
+ * kept by the population, so dead individuals cost nothing.
+ *
+ * The individuals are cut by their estimated cost (see Individual.stepCost), not by their
+ * number, in pieces of about total / (threads * GRANULARITY). There are a few pieces per thread,
+ * so when an estimate is off, the idle threads steal the pieces left instead of waiting for the
+ * slowest one.
+ * The root task and the pieces are created once per generation and reused every step;
+ * setAliveCount cuts the index before each run, so a step doesn't allocate any task.
  */
 public class MultiThreadedUpdate extends RecursiveAction {
 
+    /* Pieces per thread. */
+    private static final int GRANULARITY = 8;
+
     private final Individual[] individuals;
 
-    /* Low and High indexes this thread is working with. */
-    private final int lo, hi;
+    /* Indexes of the alive individuals, in the first positions. */
+    private final int[] alive;
+
+    /* prefixCost[k] is the cost of the alive individuals in positions [0, k). */
+    private final long[] prefixCost;
+
+    /* Number of threads, as specified. */
+    private final int threads;
 
-    /* Number of individuals / number of threads, as specified. */
-    private final int subSize;
+    /* Piece k updates the positions [cuts[k], cuts[k+1]) of the alive index. The first one is
+     * run by the root task itself, so pieces[0] is never used. */
+    private final Piece[] pieces;
+    private final int[] cuts;
+    private int pieceCount;
 
     /**
-     * Initial Constructor.
+     * Constructor.
      *
      * @param individuals array;
+     * @param alive indexes of the alive individuals;
      * @param threadNumber # of threads;
      */
-    MultiThreadedUpdate (Individual[] individuals, int threadNumber) {
-        this(individuals, 0, individuals.length, individuals.length/threadNumber);
+    MultiThreadedUpdate (Individual[] individuals, int[] alive, int threadNumber) {
+        this.individuals = individuals;
+        this.alive = alive;
+        this.threads = threadNumber;
+
+        // Each piece but the last costs at least total / (threads * GRANULARITY), rounded down,
+        // so there are never more than twice that many, plus the last one.
+        int maxPieces = threadNumber <= 1 ? 1 : 2 * threadNumber * GRANULARITY + 1;
+        prefixCost = new long[threadNumber <= 1 ? 0 : alive.length + 1];
+        pieces = new Piece[maxPieces];
+        for (int k = 1; k < maxPieces; k++) {
+            pieces[k] = new Piece();
+        }
+        cuts = new int[maxPieces + 1];
     }
 
     /**
-     * Recursive Constructor.
+     * Sets how many individuals are alive, at the start of the index, and cuts them in pieces
+     * by their estimated cost. Only before the task runs. With a single thread everything is one
+     * piece, so the costs are not needed.
      *
-     * @param individuals array;
-     * @param lo index;
-     * @param hi index;
-     * @param subSize # individuals / thread;
+     * @param count number of alive individuals;
      */
-    private MultiThreadedUpdate (Individual[] individuals, int lo, int hi, int subSize) {
-        this.individuals = individuals;
-        this.lo = lo;
-        this.hi = hi;
-        this.subSize = subSize;
+    void setAliveCount (int count) {
+        pieceCount = 1;
+        cuts[0] = 0;
+        cuts[1] = count;
+        if (threads <= 1 || count <= 1) return;
+
+        for (int k = 0; k < count; k++) {
+            prefixCost[k+1] = prefixCost[k] + individuals[alive[k]].stepCost();
+        }
+        long grain = Math.max(1, prefixCost[count] / ((long) threads * GRANULARITY));
+
+        // Close a piece as soon as it costs at least the grain.
+        pieceCount = 0;
+        for (int k = 1; k < count; k++) {
+            if (prefixCost[k] - prefixCost[cuts[pieceCount]] >= grain) {
+                cuts[++pieceCount] = k;
+            }
+        }
+        cuts[++pieceCount] = count;
     }
 
     /**
      * Implementation of the abstract method.
-     * When the sub array is small enough, the singleThreadUpdate method is called.
+     * Forks every piece but the first, updates the first one and then joins the others, in the
+     * reverse order they were forked, so the ones not stolen are run here.
      */
     protected void compute () {
-        if (hi - lo <= subSize) {
-            singleThreadUpdate(lo, hi);
+        for (int k = pieceCount - 1; k > 0; k--) {
+            Piece piece = pieces[k];
+            piece.reinitialize();
+            piece.lo = cuts[k];
+            piece.hi = cuts[k+1];
+            piece.fork();
         }
-        else {
-            int mid = (lo + hi) >>> 1;
-            invokeAll(
-                    new MultiThreadedUpdate(individuals, lo, mid, subSize),
-                    new MultiThreadedUpdate(individuals, mid, hi, subSize));
+        singleThreadUpdate(cuts[0], cuts[1]);
+        for (int k = 1; k < pieceCount; k++) {
+            pieces[k].join();
         }
     }
 
     /**
      * Loops the sub array, updating the individuals.
      *
-     * @param lo index;
-     * @param hi index;
+     * @param lo position;
+     * @param hi position;
      */
     private void singleThreadUpdate (int lo, int hi) {
         for (int i = lo; i < hi; i++) {
-            if (individuals[i].isAlive()) {
-                individuals[i].updateSensors();
-                individuals[i].think();
-                individuals[i].move();
-            }
+            Individual individual = individuals[alive[i]];
+            individual.updateSensors();
+            individual.think();
+            individual.move();
+        }
+    }
+
+    /**
+     * A range of the alive index, updated by whichever thread takes it.
+     */
+    private final class Piece extends RecursiveAction {
+
+        /* Low and High positions in the alive index. */
+        private int lo, hi;
+
+        protected void compute () {
+            singleThreadUpdate(lo, hi);
         }
     }
 
@@ -1,8 +1,7 @@
 package com.tesladodger.neat;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-
 
 /**
  * Contains the information of a node in the genome.
@@ -20,7 +19,12 @@ public class NodeGene {
     private int id;
     private int layer;
 
-    private float input;
+    /* Transfer function of this node. When null, the one of the genome is used. */
+    private Activation activation;
+
+    /* Connections arriving at and leaving this node, kept by the genome. */
+    private List<ConnectionGene> incoming;
+    private List<ConnectionGene> outgoing;
 
     /**
      * Constructor.
@@ -34,56 +38,14 @@ public class NodeGene {
         this.id = id;
         this.layer = layer;
 
-        input = 0;
-    }
-
-    /**
-     * Adds to the input value of the nodes this node is connected to.
-     *
-     * @param connections list of connections from this node;
-     *
-     * @param nodes all the nodes in the network;
-     */
-    void engage (List<ConnectionGene> connections, Map<Integer, NodeGene> nodes) {
-        for (ConnectionGene con : connections) {
-            // Ignore unexpressed connections.
-            if (con.isExpressed()) {
-                float output = sigmoidTF(input) * con.getWeight();
-                nodes.get(con.getOutNode()).addToInput(output);
-            }
-        }
-    }
-
-    /**
-     * Calculates the sigmoid transfer function.
-     *
-     * @param x value;
-     *
-     * @return sigmoid(x);
-     */
-    private float sigmoidTF (float x) {
-        return 1f / (1f + (float) Math.pow(Math.E, -4.9f * x));
-    }
-
-    /**
-     * Other nodes that are connected to this node increment the input value;
-     *
-     * @param value output from another node;
-     */
-    void addToInput (float value) {
-        input += value;
-    }
-
-    float getOutput () {
-        return sigmoidTF(input);
-    }
-
-    void reset () {
-        input = 0;
+        incoming = new ArrayList<>();
+        outgoing = new ArrayList<>();
     }
 
     NodeGene copy () {
-        return new NodeGene(type, id, layer);
+        NodeGene clone = new NodeGene(type, id, layer);
+        clone.activation = activation;
+        return clone;
     }
 
     TYPE getType () {
@@ -101,4 +63,26 @@ public class NodeGene {
     void incrementLayer () {
         layer += 1;
     }
+
+    public Activation getActivation () {
+        return activation;
+    }
+
+    List<ConnectionGene> getIncoming () {
+        return incoming;
+    }
+
+    List<ConnectionGene> getOutgoing () {
+        return outgoing;
+    }
+
+    /**
+     * Sets the transfer function of this node, overriding the one of the genome. Only through
+     * Genome.setNodeActivation, which makes the node the genome's own first.
+     *
+     * @param activation function, or null to use the one of the genome;
+     */
+    void setActivation (Activation activation) {
+        this.activation = activation;
+    }
 }
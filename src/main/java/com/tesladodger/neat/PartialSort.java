@@ -0,0 +1,121 @@
+package com.tesladodger.neat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Stable partial sort: puts the first k elements of a list in order, as a full stable sort
+ * would, without ordering the rest. Ties are broken by the original position, which makes the
+ * order total, so a quickselect can separate the k first elements in linear time before only
+ * those are sorted. This costs O(n + k log k) instead of O(n log n).
+ */
+final class PartialSort {
+
+    /* Under this size selecting first doesn't pay off and the list is just sorted. */
+    private static final int MIN_SELECT_SIZE = 256;
+
+    private PartialSort () {}
+
+
+    /**
+     * Sorts the first k elements of a list. The other elements are left after them, in their
+     * original relative order.
+     *
+     * @param list to sort;
+     * @param k number of elements to put in order;
+     * @param comparator order of the elements;
+     * @param <T> type of the elements;
+     */
+    static <T> void sortFirst (List<T> list, int k, Comparator<? super T> comparator) {
+        int n = list.size();
+        if (k >= n || n < MIN_SELECT_SIZE) {
+            list.sort(comparator);
+            return;
+        }
+        if (k <= 0) return;
+
+        List<T> items = new ArrayList<>(list);
+        int[] indexes = new int[n];
+        for (int i = 0; i < n; i++) {
+            indexes[i] = i;
+        }
+
+        select(items, indexes, k, comparator);
+
+        // Put the k first back in their original order and let the stable sort order them.
+        int[] first = Arrays.copyOf(indexes, k);
+        Arrays.sort(first);
+        boolean[] selected = new boolean[n];
+        List<T> front = new ArrayList<>(k);
+        for (int i : first) {
+            selected[i] = true;
+            front.add(items.get(i));
+        }
+        front.sort(comparator);
+
+        int position = 0;
+        for (T item : front) {
+            list.set(position++, item);
+        }
+        for (int i = 0; i < n; i++) {
+            if (!selected[i]) list.set(position++, items.get(i));
+        }
+    }
+
+
+    /**
+     * Quickselect over the indexes, so the indexes of the k first elements end up in [0, k).
+     */
+    private static <T> void select (List<T> items, int[] indexes, int k,
+                                    Comparator<? super T> comparator) {
+        int lo = 0;
+        int hi = indexes.length - 1;
+        while (lo < hi) {
+            // Median of three as pivot.
+            int mid = (lo + hi) >>> 1;
+            if (compare(items, indexes[mid], indexes[lo], comparator) < 0) swap(indexes, mid, lo);
+            if (compare(items, indexes[hi], indexes[lo], comparator) < 0) swap(indexes, hi, lo);
+            if (compare(items, indexes[hi], indexes[mid], comparator) < 0) swap(indexes, hi, mid);
+            int pivot = indexes[mid];
+
+            // Hoare partition.
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (compare(items, indexes[i], pivot, comparator) < 0) i++;
+                while (compare(items, indexes[j], pivot, comparator) > 0) j--;
+                if (i <= j) swap(indexes, i++, j--);
+            }
+
+            if (k - 1 <= j) {
+                hi = j;
+            }
+            else if (k - 1 >= i) {
+                lo = i;
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Total order of two elements: the comparator, then the original position.
+     */
+    private static <T> int compare (List<T> items, int a, int b, Comparator<? super T> comparator) {
+        int c = comparator.compare(items.get(a), items.get(b));
+        return c != 0 ? c : Integer.compare(a, b);
+    }
+
+
+    private static void swap (int[] array, int i, int j) {
+        int temp = array[i];
+        array[i] = array[j];
+        array[j] = temp;
+    }
+
+}
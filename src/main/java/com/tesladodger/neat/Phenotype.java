@@ -0,0 +1,246 @@
+package com.tesladodger.neat;
+
+import java.util.Arrays;
+
+
+/**
+ * Compiled, array backed form of a genome, used to feed inputs through the network.
+ * The nodes are ordered by layer and the expressed connections leaving each node are stored
+ * contiguously (compressed sparse row), so a forward pass is a single loop over primitive arrays.
+ * A phenotype is immutable; the genome builds a new one after its structure or weights change.
+ */
+final class Phenotype {
+
+    /* Loop used to propagate a batch of patterns through one connection, only when it's not
+     * the scalar one and the batch has at least KERNEL_MIN patterns. */
+    private static final EdgeKernel KERNEL = EdgeKernel.load();
+    private static final boolean VECTOR = !(KERNEL instanceof EdgeKernel.Scalar);
+    private static final int KERNEL_MIN = KERNEL.minPatterns();
+
+    /* Smallest number of patterns worth a batched pass. A single pattern is faster on its own,
+     * see ActivationBenchmark. */
+    static final int MIN_BATCH = 2;
+
+    /* Number of nodes in the network. */
+    private final int nodeNumber;
+
+    /* Positions of the input nodes, bias node and output nodes in the ordered arrays. */
+    private final int[] inputIndexes;
+    private final int biasIndex;
+    private final int[] outputIndexes;
+
+    /* Transfer function of each node. */
+    private final Activation[] activations;
+
+    /* The connections leaving node n are in [edgeStart[n], edgeStart[n+1]). */
+    private final int[] edgeStart;
+    private final int[] edgeTarget;
+    private final float[] edgeWeight;
+
+
+    /**
+     * Constructor. Compiles the current state of a genome.
+     *
+     * @param genome to compile;
+     */
+    Phenotype (Genome genome) {
+        IntMap<NodeGene> nodes = genome.getNodes();
+        nodeNumber = nodes.size();
+
+        // Order the nodes by layer (counting sort). position[i] is the place of the node with
+        // index i in the map.
+        int[] layerStart = new int[genome.layers + 1];
+        for (int i = 0; i < nodeNumber; i++) {
+            layerStart[nodes.valueAt(i).getLayer() + 1]++;
+        }
+        for (int l = 0; l < genome.layers; l++) {
+            layerStart[l+1] += layerStart[l];
+        }
+        int[] position = new int[nodeNumber];
+        NodeGene[] orderedNodes = new NodeGene[nodeNumber];
+        for (int i = 0; i < nodeNumber; i++) {
+            NodeGene node = nodes.valueAt(i);
+            position[i] = layerStart[node.getLayer()]++;
+            orderedNodes[position[i]] = node;
+        }
+
+        // The nodes of the genome start with the inputs and outputs, in order.
+        inputIndexes = new int[genome.getInputNumber()];
+        for (int i = 0; i < inputIndexes.length; i++) {
+            inputIndexes[i] = position[i];
+        }
+        outputIndexes = new int[genome.getOutputNumber()];
+        for (int i = 0; i < outputIndexes.length; i++) {
+            outputIndexes[i] = position[inputIndexes.length + i];
+        }
+        biasIndex = position[nodes.indexOf(genome.getBiasNode())];
+
+        activations = new Activation[nodeNumber];
+        for (int i = 0; i < nodeNumber; i++) {
+            Activation a = orderedNodes[i].getActivation();
+            activations[i] = a != null ? a : genome.getActivation();
+        }
+
+        // Copy the expressed connections leaving every node. Output nodes don't engage.
+        int[] targets = new int[genome.getConnectionGenes().size()];
+        float[] weights = new float[genome.getConnectionGenes().size()];
+        edgeStart = new int[nodeNumber + 1];
+        int e = 0;
+        for (int n = 0; n < nodeNumber; n++) {
+            edgeStart[n] = e;
+            if (orderedNodes[n].getType() == NodeGene.TYPE.OUTPUT) continue;
+            for (ConnectionGene con : orderedNodes[n].getOutgoing()) {
+                if (con.isExpressed()) {
+                    targets[e] = position[nodes.indexOf(con.getOutNode())];
+                    weights[e++] = con.getWeight();
+                }
+            }
+        }
+        edgeStart[nodeNumber] = e;
+        edgeTarget = Arrays.copyOf(targets, e);
+        edgeWeight = Arrays.copyOf(weights, e);
+    }
+
+
+    /**
+     * Feeds one input pattern through the network.
+     *
+     * @param inputs from the individual's sensors;
+     * @param outputs array where the outputs of the network are written;
+     * @param values scratch array with at least size() elements;
+     */
+    void activate (float[] inputs, float[] outputs, float[] values) {
+        for (int n = 0; n < nodeNumber; n++) {
+            values[n] = 0;
+        }
+
+        // Set the values of the input nodes and the bias.
+        for (int i = 0; i < inputIndexes.length; i++) {
+            values[inputIndexes[i]] = inputs[i];
+        }
+        values[biasIndex] = 1;
+
+        // Nodes are ordered by layer, so every node is complete when it is reached.
+        for (int n = 0; n < nodeNumber; n++) {
+            float output = activations[n].apply(values[n]);
+            values[n] = output;
+            for (int e = edgeStart[n]; e < edgeStart[n+1]; e++) {
+                values[edgeTarget[e]] += output * edgeWeight[e];
+            }
+        }
+
+        for (int i = 0; i < outputIndexes.length; i++) {
+            outputs[i] = values[outputIndexes[i]];
+        }
+    }
+
+
+    /**
+     * Feeds a batch of input patterns through the network in a single pass over the connections.
+     * The values are stored node by node: rows[n][p] is the value of node n for pattern p. Each
+     * connection then adds a whole row to another, a loop over two separate arrays that the JIT
+     * can turn into SIMD instructions, or that the vector kernel runs when the batch is wide
+     * enough.
+     *
+     * @param patterns n*m matrix where m is the number of patterns and n the number of inputs;
+     * @param outputs matrix where the outputs of each pattern are written;
+     * @param rows scratch matrix with at least size() rows of patterns.length elements;
+     */
+    void activate (float[][] patterns, float[][] outputs, float[][] rows) {
+        int p = patterns.length;
+        for (int n = 0; n < nodeNumber; n++) {
+            Arrays.fill(rows[n], 0, p, 0f);
+        }
+
+        // Set the values of the input nodes and the bias.
+        for (int j = 0; j < p; j++) {
+            float[] inputs = patterns[j];
+            for (int i = 0; i < inputIndexes.length; i++) {
+                rows[inputIndexes[i]][j] = inputs[i];
+            }
+        }
+        Arrays.fill(rows[biasIndex], 0, p, 1f);
+
+        if (VECTOR && p >= KERNEL_MIN) {
+            propagateWithKernel(rows, p);
+        }
+        else {
+            propagate(rows, p);
+        }
+
+        for (int i = 0; i < outputIndexes.length; i++) {
+            float[] row = rows[outputIndexes[i]];
+            for (int j = 0; j < p; j++) {
+                outputs[j][i] = row[j];
+            }
+        }
+    }
+
+
+    /**
+     * Activates every node and adds its row to the rows of the nodes it connects to, with a
+     * plain loop per connection.
+     *
+     * @param rows values of the nodes;
+     * @param p number of patterns;
+     */
+    private void propagate (float[][] rows, int p) {
+        for (int n = 0; n < nodeNumber; n++) {
+            float[] from = rows[n];
+            Activation activation = activations[n];
+            for (int j = 0; j < p; j++) {
+                from[j] = activation.apply(from[j]);
+            }
+            for (int e = edgeStart[n]; e < edgeStart[n+1]; e++) {
+                addRow(from, rows[edgeTarget[e]], p, edgeWeight[e]);
+            }
+        }
+    }
+
+
+    /**
+     * Adds the first p values of a row, times the weight, to another row.
+     *
+     * @param from values of the origin node;
+     * @param to values of the destination node;
+     * @param p number of patterns;
+     * @param weight of the connection;
+     */
+    private static void addRow (float[] from, float[] to, int p, float weight) {
+        for (int j = 0; j < p; j++) {
+            to[j] += from[j] * weight;
+        }
+    }
+
+
+    /**
+     * Same as propagate, with the kernel doing the work of each connection. Kept apart so the
+     * plain loop is compiled on its own.
+     *
+     * @param rows values of the nodes;
+     * @param p number of patterns;
+     */
+    private void propagateWithKernel (float[][] rows, int p) {
+        for (int n = 0; n < nodeNumber; n++) {
+            float[] from = rows[n];
+            Activation activation = activations[n];
+            for (int j = 0; j < p; j++) {
+                from[j] = activation.apply(from[j]);
+            }
+            for (int e = edgeStart[n]; e < edgeStart[n+1]; e++) {
+                KERNEL.propagate(from, rows[edgeTarget[e]], p, edgeWeight[e]);
+            }
+        }
+    }
+
+
+    /**
+     * Size of the scratch array needed to activate a single pattern.
+     *
+     * @return number of nodes;
+     */
+    int size () {
+        return nodeNumber;
+    }
+
+}
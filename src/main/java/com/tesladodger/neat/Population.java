@@ -1,8 +1,13 @@
 package com.tesladodger.neat;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 // todo
 //      - getter for the genome as a list, in order to render it in a game
@@ -18,6 +23,11 @@ public class Population {
     /* Array of all the individuals in a generation. */
     private Individual[] individuals;
 
+    /* Indexes of the individuals still alive in this generation, in the first aliveCount
+     * positions and in population order. Dead individuals are removed after each step. */
+    private int[] alive;
+    private int aliveCount;
+
     /* Number of individuals. */
     private int popSize;
 
@@ -58,6 +68,22 @@ public class Population {
 
     private MODE mode;
 
+    /* Strategies to pick the parents of a child inside a species. */
+    public enum SELECTION {
+        /*
+         * Probability proportional to the fitness of the member.
+         */
+        ROULETTE,
+
+        /*
+         * The fittest of a few random members.
+         */
+        TOURNAMENT,
+        ;
+    }
+
+    private SELECTION selection;
+
     /* In ONLY_SHOW_BEST mode, this is the score of the individual being replayed. */
     private float expectedScore;
 
@@ -80,6 +106,36 @@ public class Population {
     /* For multithreaded update of the individuals. */
     private int threads;
 
+    /* Pool that runs the update, speciation and reproduction tasks, null when single threaded.
+     * Shut down by shutdown only when the population created it. */
+    private ForkJoinPool pool;
+    private boolean ownsPool;
+
+    /* Runs each episode on a thread of its own in runSimulation, null when not in use. */
+    private EpisodeExecutor episodeExecutor;
+
+    /* Latest evaluation started by evaluateGenerationAsync, null before the first one. */
+    private Evaluation evaluation;
+
+    /* Root update task for the current individuals, reused every step. */
+    private MultiThreadedUpdate updateTask;
+
+    /* Maximum compatibility distance between a genome and the rep of its species. */
+    private float compatibilityThreshold;
+
+    /* When greater than 0, the threshold is adjusted every generation to keep the number of
+     * species close to this target. */
+    private int targetSpecies;
+
+    /* How much the threshold changes per generation when targeting a number of species, and
+     * the lowest value it can take. */
+    private static final float THRESHOLD_STEP = 0.3f;
+    private static final float MIN_THRESHOLD = 0.3f;
+
+    /* When true, the innovation history forgets the connections no genome uses anymore, at the
+     * end of every generation. */
+    private boolean innovationPruning;
+
 
     /**
      * Constructor with default single threaded update.
@@ -92,7 +148,7 @@ public class Population {
      * @param behavior implementation of the behavior interface;
      */
     public Population (int numSensors, int numControls, int popSize,
-                       Random r, Innovation innovation, Behavior behavior) {
+                       Random r, InnovationHistory innovation, Behavior behavior) {
         this(numSensors, numControls, popSize, r, innovation, behavior, 1);
     }
 
@@ -106,11 +162,42 @@ public class Population {
      * @param r Random;
      * @param innovation innovation number generator;
      * @param behavior implementation of the Behavior interface;
-     * @param threads number of threads to be created when updating the simulation;
+     * @param threads number of threads to be created when updating the simulation. When
+     *                greater than 1, the population creates its own pool, which should be
+     *                released with shutdown;
      */
     public Population (int numSensors, int numControls, int popSize,
-                       Random r, Innovation innovation, Behavior behavior,
+                       Random r, InnovationHistory innovation, Behavior behavior,
                        int threads) {
+        this(numSensors, numControls, popSize, r, innovation, behavior, threads,
+                threads > 1 ? new ForkJoinPool(threads) : null);
+        ownsPool = pool != null;
+    }
+
+
+    /**
+     * Constructor with a pool supplied by the user, shared with other work. The population uses
+     * as many threads as the parallelism of the pool and never shuts it down.
+     *
+     * @param numSensors genome param;
+     * @param numControls genome param;
+     * @param popSize number of individuals;
+     * @param r Random;
+     * @param innovation innovation number generator;
+     * @param behavior implementation of the Behavior interface;
+     * @param pool runs the simulation, speciation and reproduction tasks;
+     */
+    public Population (int numSensors, int numControls, int popSize,
+                       Random r, InnovationHistory innovation, Behavior behavior,
+                       ForkJoinPool pool) {
+        this(numSensors, numControls, popSize, r, innovation, behavior, pool.getParallelism(),
+                pool);
+    }
+
+
+    private Population (int numSensors, int numControls, int popSize,
+                        Random r, InnovationHistory innovation, Behavior behavior,
+                        int threads, ForkJoinPool pool) {
 
         this.popSize = popSize;
 
@@ -128,10 +215,16 @@ public class Population {
         generation = 0;
 
         mode = MODE.NORMAL;
+        selection = SELECTION.ROULETTE;
         saveToFile = false;
         saveToImage = false;
 
         this.threads = threads;
+        this.pool = pool;
+        resetAlive();
+
+        compatibilityThreshold = Species.COMPATIBILITY_THRESHOLD;
+        targetSpecies = 0;
     }
 
 
@@ -147,28 +240,33 @@ public class Population {
         if (mode == MODE.ONLY_SHOW_BEST) throw new InvalidModeException("Step by step simulation is" +
                 " not available in ONLY_SHOW_BEST mode.");
 
-        MultiThreadedUpdate multiThreadedUpdate = new MultiThreadedUpdate(individuals, threads);
-        multiThreadedUpdate.compute();
-
-        /* Rendering needs to be single-threaded to work in Processing. */
-        for (Individual i : individuals) {
-            if (i.isAlive()) i.render();
+        updateTask.setAliveCount(aliveCount);
+        execute(updateTask);
+
+        // Only the individuals stepped now can have found the solution, including the ones that
+        // died in this step.
+        if (mode == MODE.FIND_SOLUTION) {
+            for (int k = 0; k < aliveCount; k++) {
+                Individual i = individuals[alive[k]];
+                if (i.isSolution()) {
+                    System.out.println("\nSolution found in " + generation + " generations:");
+                    Genome.printlnGenome(i.getBrain());
+                    if (saveToFile) {
+                        Genome.saveGenome(i.getBrain(), genomeFileName);
+                    }
+                    if (saveToImage) {
+                        Genome.saveImage(i.getBrain(), imageFileName);
+                    }
+                    solutionFound = true;
+                }
+            }
         }
 
-        if (mode != MODE.FIND_SOLUTION) return;
+        removeDead();
 
-        for (Individual i : individuals) {
-            if (i.isSolution()) {
-                System.out.println("\nSolution found in " + generation + " generations:");
-                Genome.printlnGenome(i.getBrain());
-                if (saveToFile) {
-                    Genome.saveGenome(i.getBrain(), genomeFileName);
-                }
-                if (saveToImage) {
-                    Genome.saveImage(i.getBrain(), imageFileName);
-                }
-                solutionFound = true;
-            }
+        /* Rendering needs to be single-threaded to work in Processing. */
+        for (int k = 0; k < aliveCount; k++) {
+            individuals[alive[k]].render();
         }
     }
 
@@ -190,7 +288,7 @@ public class Population {
 
     /**
      * Background simulation. Runs the simulation and calls natural selection. Makes a replay copy
-     * of the best of this generation.
+     * of the best of this generation. See setEpisodeThreads for behaviors that block.
      *
      * Should be called once before the render loop.
      *
@@ -199,16 +297,11 @@ public class Population {
      *
      * @throws InvalidModeException when called outside ONLY_SHOW_BEST mode;
      */
-    public void runSimulation (Random r, Innovation innovation) {
+    public void runSimulation (Random r, InnovationHistory innovation) {
         if (mode != MODE.ONLY_SHOW_BEST) throw new InvalidModeException("Background simulation is " +
                 "only available in ONLY_SHOW_BEST mode.");
 
-        while (!areAllDead()) {
-            for (Individual i : individuals) {
-                MultiThreadedUpdate multiThreadedUpdate = new MultiThreadedUpdate(individuals, threads);
-                multiThreadedUpdate.compute();
-            }
-        }
+        simulate(null, null);
 
         naturalSelection(r, innovation);
         previousBestReplayCopy = previousBest.copyForReplay();
@@ -216,6 +309,134 @@ public class Population {
     }
 
 
+    /**
+     * Evaluates the current generation in the background: runs the simulation until every
+     * individual is dead and calls natural selection, like runSimulation, on a thread of the
+     * executor. Nothing is rendered. The caller must not use the population until the future
+     * completes. When the previous evaluation is still running, this one starts after it exits.
+     *
+     * Cancelling the future stops the simulation at the next step, without natural selection,
+     * and waits until the worker is done with the population. The individuals keep their state,
+     * so calling this again resumes the generation.
+     *
+     * @param r Random;
+     * @param innovation generator;
+     * @param executor runs the evaluation;
+     * @param listener told about every step, can be null;
+     *
+     * @return future completed with the stats of the generation, or exceptionally if the
+     *         simulation throws;
+     */
+    public CompletableFuture<GenerationStats> evaluateGenerationAsync (final Random r,
+            final InnovationHistory innovation, final Executor executor,
+            final GenerationListener listener) {
+        final Evaluation next = new Evaluation();
+        Runnable launch = new Runnable() {
+            public void run () {
+                try {
+                    executor.execute(new Runnable() {
+                        public void run () {
+                            evaluate(next, r, innovation, listener);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // Rejected, the worker never runs.
+                    next.exit(null, e);
+                }
+            }
+        };
+
+        Evaluation previous = evaluation;
+        evaluation = next;
+        if (previous == null) {
+            launch.run();
+        }
+        else {
+            previous.exited.thenRun(launch);
+        }
+        return next;
+    }
+
+
+    /**
+     * Body of the worker of an evaluation. Completes the evaluation only as it exits.
+     *
+     * @param evaluation being run;
+     * @param r Random;
+     * @param innovation generator;
+     * @param listener told about every step, can be null;
+     */
+    private void evaluate (Evaluation evaluation, Random r, InnovationHistory innovation,
+                           GenerationListener listener) {
+        if (!evaluation.start()) return;
+
+        GenerationStats stats = null;
+        Throwable failure = null;
+        try {
+            int evaluated = generation;
+            int steps = simulate(listener, evaluation);
+            if (!evaluation.isStopped()) {
+                naturalSelection(r, innovation);
+                if (mode == MODE.ONLY_SHOW_BEST) {
+                    previousBestReplayCopy = previousBest.copyForReplay();
+                    expectedScore = previousBest.getFitness();
+                }
+                stats = new GenerationStats(evaluated, steps, species.size(),
+                        previousBest.getFitness(), bestEver.getFitness(), compatibilityThreshold);
+            }
+        } catch (Throwable t) {
+            failure = t;
+        }
+        evaluation.exit(stats, failure);
+    }
+
+
+    /**
+     * Evaluates the current generation in the background, on the pool of this population or on
+     * the common pool when single threaded. See the overload with an executor.
+     *
+     * @param r Random;
+     * @param innovation generator;
+     * @param listener told about every step, can be null;
+     *
+     * @return future completed with the stats of the generation;
+     */
+    public CompletableFuture<GenerationStats> evaluateGenerationAsync (Random r,
+            InnovationHistory innovation, GenerationListener listener) {
+        return evaluateGenerationAsync(r, innovation,
+                pool != null ? pool : ForkJoinPool.commonPool(), listener);
+    }
+
+
+    /**
+     * Steps the alive individuals until they're all dead, with the episode threads when in use.
+     *
+     * @param listener told about every step, can be null;
+     * @param evaluation checked for cancellation between steps, can be null;
+     *
+     * @return number of steps, of the longest episode with the episode threads;
+     */
+    private int simulate (GenerationListener listener, Evaluation evaluation) {
+        int steps = 0;
+        if (episodeExecutor != null) {
+            steps = episodeExecutor.run(individuals, alive, aliveCount, evaluation, listener,
+                    generation);
+            removeDead();
+        }
+        while (aliveCount > 0) {
+            if (evaluation != null && evaluation.isStopped()) break;
+
+            updateTask.setAliveCount(aliveCount);
+            execute(updateTask);
+            removeDead();
+
+            steps++;
+            if (listener != null) listener.stepDone(generation, steps, aliveCount);
+        }
+        return steps;
+    }
+
+
     /**
      * Runs the simulation on a copy of the best of the previous generation.
      *
@@ -257,12 +478,69 @@ public class Population {
      * @return true if all individuals are dead;
      */
     public boolean areAllDead () {
-        for (Individual i : individuals) {
-            if (i.isAlive()) {
-                return false;
+        return aliveCount == 0;
+    }
+
+
+    /**
+     * Removes the individuals that died in the last step from the alive index, keeping the order
+     * of the others.
+     */
+    private void removeDead () {
+        int count = 0;
+        for (int k = 0; k < aliveCount; k++) {
+            if (individuals[alive[k]].isAlive()) {
+                alive[count++] = alive[k];
+            }
+        }
+        aliveCount = count;
+    }
+
+
+    /**
+     * Builds the alive index and the update task for a new generation.
+     */
+    private void resetAlive () {
+        alive = new int[individuals.length];
+        aliveCount = 0;
+        for (int i = 0; i < individuals.length; i++) {
+            if (individuals[i].isAlive()) {
+                alive[aliveCount++] = i;
             }
         }
-        return true;
+        updateTask = new MultiThreadedUpdate(individuals, alive, threads);
+    }
+
+
+    /**
+     * Runs a task on the pool and waits for it. Without a pool, the task runs on the calling
+     * thread. Tasks are reset first, so the same one can be run every step.
+     *
+     * @param task to run;
+     */
+    private void execute (ForkJoinTask<?> task) {
+        task.reinitialize();
+        if (pool != null) {
+            pool.invoke(task);
+        }
+        else {
+            task.invoke();
+        }
+    }
+
+
+    /**
+     * Shuts down the pool created by this population and the episode threads, letting the
+     * running tasks finish. A pool supplied by the user is left running. The population can't be
+     * updated afterwards.
+     */
+    public void shutdown () {
+        if (ownsPool) {
+            pool.shutdown();
+        }
+        if (episodeExecutor != null) {
+            episodeExecutor.shutdown();
+        }
     }
 
 
@@ -272,8 +550,9 @@ public class Population {
      * @param r random;
      * @param innovation innovation generator;
      */
-    public void naturalSelection (Random r, Innovation innovation) {
+    public void naturalSelection (Random r, InnovationHistory innovation) {
         speciate();
+        adjustCompatibilityThreshold();
         for (Species s : species) {
             s.calculateIndividualFitnesses();  // Calculate the fitness of all individuals.
             s.sort();  // Sort the members by their fitness.
@@ -295,8 +574,14 @@ public class Population {
         float aveSum = calculateAverageFitnessSum();
         killUnreproducibleSpecies(aveSum);
 
-        // Build the next generation.
+        for (Species s : species) {
+            s.prepareSelection(selection);  // Build the structures to pick parents.
+        }
+
+        // Build the next generation. The elites are copied here, the other slots only get the
+        // species that breeds them, and the children are made afterwards.
         Individual[] nextGen = new Individual[popSize];
+        Species[] parents = new Species[popSize];
         int index = 0;  // Current index to add to nextGen.
 
         for (Species s : species) {
@@ -307,7 +592,7 @@ public class Population {
 
             int allowedChildren = (int) Math.floor((s.getAdjustedFitnessSum() / aveSum) * popSize) - 1;
             for (int i = 0; i < allowedChildren; i++) {
-                nextGen[index++] = s.makeAChild(r, innovation);
+                parents[index++] = s;
             }
         }
 
@@ -318,30 +603,107 @@ public class Population {
 
         // If the next generation is still not full, keep adding children from the best species.
         while (index < nextGen.length) {
-            nextGen[index++] = species.get(0).makeAChild(r, innovation);
+            parents[index++] = species.get(0);
+        }
+
+        // Make the children, each slot with its own random stream.
+        MultiThreadedReproduction reproduction = new MultiThreadedReproduction(nextGen, parents,
+                r.nextLong(), innovation, threads);
+        execute(reproduction);
+
+        // The children still share the behaviors of their parents. They are copied here, on this
+        // thread and in slot order, so Behavior.copy doesn't need to be thread safe.
+        for (int i = 0; i < popSize; i++) {
+            if (parents[i] != null) {
+                nextGen[i].ownBehavior();
+            }
         }
 
         individuals =  nextGen;
+        resetAlive();
+        if (innovationPruning) {
+            pruneInnovations(innovation);
+        }
         generation++;
     }
 
 
+    /**
+     * Removes from the innovation history the connections that no genome kept by the population
+     * has: the new generation, the reps and bests of the species, the best ever and the best of
+     * the previous generation.
+     *
+     * @param innovation history to prune;
+     */
+    private void pruneInnovations (InnovationHistory innovation) {
+        LongHashSet used = new LongHashSet();
+        for (Individual i : individuals) {
+            addPairs(i.getBrain(), used);
+        }
+        for (Species s : species) {
+            addPairs(s.getRep(), used);
+            addPairs(s.getBest().getBrain(), used);
+        }
+        addPairs(bestEver.getBrain(), used);
+        addPairs(previousBest.getBrain(), used);
+
+        innovation.retainAll(used);
+    }
+
+
+    /**
+     * Adds the pairs of node ids of the connections of a genome to a set.
+     *
+     * @param genome to go through;
+     * @param pairs set of pairs;
+     */
+    private static void addPairs (Genome genome, LongHashSet pairs) {
+        for (ConnectionGene con : genome.getConnectionGenes()) {
+            pairs.add(Genome.pair(con.getInNode(), con.getOutNode()));
+        }
+    }
+
+
     /**
      * Divide the population into species.
+     *
+     * The individuals are first tested against the species of the previous generation, which
+     * only reads them, so it's done in parallel when using more than one thread. Then they are
+     * added in population order, and the ones no previous species accepted are tested against
+     * the species created during this call. The result is the same as testing every individual
+     * in order on a single thread.
      */
-    private void speciate () {
+    void speciate () {
         // Clear the members of every species.
         for (Species s : species) {
             s.clear();
         }
 
+        // Find the first previous species that accepts each individual.
+        Species[] previousSpecies = species.toArray(new Species[0]);
+        int[] matches = new int[individuals.length];
+        MultiThreadedSpeciation speciation = new MultiThreadedSpeciation(individuals,
+                previousSpecies, matches, compatibilityThreshold, threads);
+        if (pool != null) {
+            for (Species s : previousSpecies) {
+                s.prepareForComparison();
+            }
+        }
+        execute(speciation);
+
         // Go through all the individuals.
-        for (Individual individual : individuals) {
+        for (int i = 0; i < individuals.length; i++) {
+            Individual individual = individuals[i];
+            if (matches[i] >= 0) {
+                previousSpecies[matches[i]].addToSpecies(individual);
+                continue;
+            }
+
             boolean speciesFound = false;
-            for (Species s : species) {
-                // When a species can accept this individual, add it.
-                if (s.canAccept(individual.getBrain())) {
-                    s.addToSpecies(individual);
+            for (int s = previousSpecies.length; s < species.size(); s++) {
+                // When a new species can accept this individual, add it.
+                if (species.get(s).canAccept(individual.getBrain(), compatibilityThreshold)) {
+                    species.get(s).addToSpecies(individual);
                     speciesFound = true;
                     break;
                 }
@@ -354,22 +716,37 @@ public class Population {
     }
 
 
+    /**
+     * When targeting a number of species, moves the compatibility threshold one step towards
+     * it: a higher threshold makes bigger species, so fewer of them.
+     */
+    private void adjustCompatibilityThreshold () {
+        if (targetSpecies <= 0) return;
+
+        int speciesWithMembers = 0;
+        for (Species s : species) {
+            if (s.numberOfMembers() > 0) speciesWithMembers++;
+        }
+
+        if (speciesWithMembers > targetSpecies) {
+            compatibilityThreshold += THRESHOLD_STEP;
+        }
+        else if (speciesWithMembers < targetSpecies) {
+            compatibilityThreshold = Math.max(MIN_THRESHOLD, compatibilityThreshold - THRESHOLD_STEP);
+        }
+    }
+
+
     /**
      * Sorts the current list of species by the fitness of their best individual.
      * Only works after sorting every species.
      */
     private void sortSpecies () {
-        int i = 1;
-        while (i < species.size()) {
-            Species si = species.get(i);
-            int j = i - 1;
-            while (j >= 0 && species.get(j).getCurrentBestScore() < si.getCurrentBestScore()) {
-                species.set(j+1, species.get(j));
-                j--;
+        species.sort(new Comparator<Species>() {
+            public int compare (Species a, Species b) {
+                return Float.compare(b.getCurrentBestScore(), a.getCurrentBestScore());
             }
-            species.set(j+1, si);
-            i++;
-        }
+        });
     }
 
 
@@ -414,16 +791,12 @@ public class Population {
 
 
     /**
-     * Calculates how many individuals are still alive in the population.
+     * Returns how many individuals are still alive in the population, from the alive index.
      *
      * @return number of alive individuals;
      */
     public int getNumberOfAliveIndividuals () {
-        int count = 0;
-        for (Individual i : individuals) {
-            if (i.isAlive()) count++;
-        }
-        return count;
+        return aliveCount;
     }
 
 
@@ -452,6 +825,51 @@ public class Population {
     }
 
 
+    /**
+     * Change how parents are picked inside a species.
+     *
+     * @param selection see SELECTION enum;
+     */
+    public void setSelection (SELECTION selection) {
+        this.selection = selection;
+    }
+
+
+    /**
+     * Turn on or off running every episode on a thread of its own in runSimulation and
+     * evaluateGenerationAsync. Each individual is updated until it dies without waiting for the
+     * others, so behaviors that block (on I/O, for example) don't hold up the fork-join pool.
+     * Uses virtual threads on JDK 21 and later, and platform threads on older JDKs. The
+     * behaviors are still called by one thread at a time, but different individuals run at the
+     * same time. The steps of a generation are those of its longest episode, and a listener is
+     * told when each episode ends rather than after every step.
+     *
+     * @param episodeThreads true to run the episodes on their own threads;
+     */
+    public void setEpisodeThreads (boolean episodeThreads) {
+        if (episodeThreads && episodeExecutor == null) {
+            episodeExecutor = new EpisodeExecutor();
+        }
+        else if (!episodeThreads && episodeExecutor != null) {
+            episodeExecutor.shutdown();
+            episodeExecutor = null;
+        }
+    }
+
+
+    /**
+     * Turn on or off the pruning of the innovation history. When on, the connections that no
+     * genome uses anymore are forgotten at the end of every generation, so the history stays
+     * the size of the population instead of growing for the whole run. The numbers of the
+     * connections still in use never change.
+     *
+     * @param innovationPruning true to prune;
+     */
+    public void setInnovationPruning (boolean innovationPruning) {
+        this.innovationPruning = innovationPruning;
+    }
+
+
     /**
      * Choose to save the solution in FIND_SOLUTION mode to a file.
      *
@@ -484,6 +902,38 @@ public class Population {
     }
 
 
+    /**
+     * Adjust the compatibility threshold every generation to keep the number of species close to
+     * a target, which bounds the cost of speciation.
+     *
+     * @param targetSpecies number of species to aim for, or 0 to keep the threshold fixed;
+     */
+    public void setTargetNumberOfSpecies (int targetSpecies) {
+        this.targetSpecies = targetSpecies;
+    }
+
+
+    /**
+     * Sets the compatibility threshold. When targeting a number of species, this is the
+     * starting value.
+     *
+     * @param compatibilityThreshold maximum distance between a genome and the rep of a species;
+     */
+    public void setCompatibilityThreshold (float compatibilityThreshold) {
+        this.compatibilityThreshold = compatibilityThreshold;
+    }
+
+
+    /**
+     * Returns the compatibility threshold in use.
+     *
+     * @return threshold;
+     */
+    public float getCompatibilityThreshold () {
+        return compatibilityThreshold;
+    }
+
+
     /*
      * Prints the generation, number of species, best fitness score and calls the printGenome
      * method on the previous best genome.
@@ -498,6 +948,14 @@ public class Population {
         System.out.println();
     }*/
 
+    Individual[] getIndividuals () {
+        return individuals;
+    }
+
+    List<Species> getSpecies () {
+        return species;
+    }
+
     public int getGeneration () {
         return generation;
     }
@@ -1,6 +1,7 @@
 package com.tesladodger.neat;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
 
@@ -10,16 +11,28 @@ import java.util.Random;
  */
 class Species {
 
-    /* Threshold to accept a member to this species. */
-    private static final float COMPATIBILITY_THRESHOLD = 3f;
+    /* Default threshold to accept a member to a species. */
+    static final float COMPATIBILITY_THRESHOLD = 3f;
 
-    /* Coefficients to assert similarity between the rep and another genome. */
+    /* Coefficients to assert similarity between the rep and another genome (excess genes,
+     * disjoint genes and average weight difference). */
     private static final float COMPAT_COEF_1 = 1.0f;
+    private static final float COMPAT_COEF_2 = 1.0f;
     private static final float COMPAT_COEF_3 = 0.4f;
 
     /* Probability of a child being created without crossover. */
     private static final float MUTATION_WITHOUT_CROSSOVER_PROBABILITY = 0.1f;
 
+    /* Number of members that take part in each tournament. */
+    private static final int TOURNAMENT_SIZE = 3;
+
+    /* Descending order of fitness. */
+    private static final Comparator<Individual> BY_FITNESS = new Comparator<Individual>() {
+        public int compare (Individual a, Individual b) {
+            return Float.compare(b.getFitness(), a.getFitness());
+        }
+    };
+
 
     /* List of members of this species. */
     private List<Individual> members;
@@ -39,6 +52,11 @@ class Species {
     /* Sum of the adjusted fitnesses of a generation. */
     private float adjustedFitnessSum;
 
+    /* How parents are picked, and the running sum of the fitnesses of the members used by
+     * roulette selection. Built once per generation by prepareSelection. */
+    private Population.SELECTION selection;
+    private float[] cumulativeFitness;
+
 
     /**
      * Constructor.
@@ -60,80 +78,103 @@ class Species {
      * Method to assert whether a genome belongs to this species.
      *
      * @param candidate to specify;
+     * @param threshold maximum compatibility distance to the rep;
      *
      * @return true if the candidate belongs to this species;
      */
-    boolean canAccept (Genome candidate) {
-
-        float excess_disjoint = (float) calculateExcessDisjointNumber(candidate);
-        float average_weight_diff = calculateAverageWeightDiff(candidate);
-
-        // Large genome normalizer.
-        int N = candidate.getConnectionKeys().size() - 20;
-        if (N < 1) {
-            N = 1;
-        }
-
-        float compatibility = (COMPAT_COEF_1 * excess_disjoint) / N;
-        compatibility += COMPAT_COEF_3 * average_weight_diff;
-
-        return compatibility <= COMPATIBILITY_THRESHOLD;
+    boolean canAccept (Genome candidate, float threshold) {
+        return compatibilityDistance(candidate, threshold) <= threshold;
     }
 
 
     /**
-     * Calculates the number of excess and disjoint genes between the rep and a candidate.
-     *
-     * @param candidate being evaluated;
-     *
-     * @return sum of excess and disjoint genes;
+     * Builds the sorted genes of the rep ahead of time, so it can be compared with candidates
+     * from several threads.
      */
-    private int calculateExcessDisjointNumber (Genome candidate) {
-        // Loop through the keys of the rep and the candidate. If they match, increment the
-        // matching number.
-        int matching = 0;
-        for (Integer gene1 : rep.getConnectionKeys()) {
-            for (Integer gene2 : candidate.getConnectionKeys()) {
-                if (gene1.equals(gene2)) {
-                    matching++;
-                }
-            }
-        }
-        return rep.getConnectionKeys().size() + candidate.getConnectionKeys().size() - 2 * matching;
+    void prepareForComparison () {
+        rep.getSortedInnovations();
     }
 
 
     /**
-     * Calculates the average weight difference between the rep and a candidate.
+     * Calculates the compatibility distance between the rep and a candidate, in a single pass
+     * over the genes of both, sorted by innovation number. Genes that don't match are disjoint
+     * when they are inside the range of the other genome and excess when they are past its end.
+     *
+     * The weight term is never negative, so the gene term alone is a lower bound of the
+     * distance. Since at least |n - m| of the genes left in the two genomes can't match, the
+     * bound is known before the pass and grows with each mismatch. As soon as it goes over the
+     * limit, the pass stops.
      *
      * @param candidate being evaluated;
+     * @param limit distance above which the exact value is not needed;
      *
-     * @return average weight difference;
+     * @return compatibility distance, or infinity if it's known to be over the limit;
      */
-    private float calculateAverageWeightDiff (Genome candidate) {
-        if (rep.getConnectionKeys().size() == 0 || candidate.getConnectionKeys().size() == 0) {
-            return 0f;
+    private float compatibilityDistance (Genome candidate, float limit) {
+        int[] repGenes = rep.getSortedInnovations();
+        int[] candidateGenes = candidate.getSortedInnovations();
+        float[] repWeights = rep.getSortedWeights();
+        float[] candidateWeights = candidate.getSortedWeights();
+
+        // Large genome normalizer.
+        int N = candidateGenes.length - 20;
+        if (N < 1) {
+            N = 1;
         }
 
-        // Loop through all the connections. If any match, add their difference to the sum and
-        // increment the matching number. After that, divide the sum by the number of matching
-        // connections.
-        float matching = 0;
-        float sum = 0;
-        for (ConnectionGene con1 : rep.getConnections().values()) {
-            for (ConnectionGene con2 : candidate.getConnections().values()) {
-                if (con1.getInnovationNumber() == con2.getInnovationNumber()) {
-                    matching++;
-                    sum += Math.abs(con1.getWeight() - con2.getWeight());
-                    break;
+        // Coefficient of each mismatch in the lower bound.
+        float mismatchCoef = Math.min(COMPAT_COEF_1, COMPAT_COEF_2);
+
+        // Cheap rejection from the number of genes alone.
+        if (mismatchCoef * Math.abs(repGenes.length - candidateGenes.length) / N > limit) {
+            return Float.POSITIVE_INFINITY;
+        }
+
+        int i = 0;
+        int j = 0;
+        int matching = 0;
+        int disjoint = 0;
+        float weightDiffSum = 0;
+        while (i < repGenes.length && j < candidateGenes.length) {
+            if (repGenes[i] == candidateGenes[j]) {
+                matching++;
+                weightDiffSum += Math.abs(repWeights[i++] - candidateWeights[j++]);
+            }
+            else {
+                if (repGenes[i] < candidateGenes[j]) {
+                    i++;
+                }
+                else {
+                    j++;
+                }
+                disjoint++;
+
+                int unmatchable = Math.abs((repGenes.length - i) - (candidateGenes.length - j));
+                if (mismatchCoef * (disjoint + unmatchable) / N > limit) {
+                    return Float.POSITIVE_INFINITY;
                 }
             }
         }
-        // Don't divide by 0;
-        if (matching == 0) {
-            return 100f;
+        int excess = (repGenes.length - i) + (candidateGenes.length - j);
+
+        // Average weight difference of the matching genes. When there are no genes to compare
+        // it's 0, when none of them match it's a big number.
+        float averageWeightDiff;
+        if (repGenes.length == 0 || candidateGenes.length == 0) {
+            averageWeightDiff = 0f;
+        }
+        else if (matching == 0) {
+            averageWeightDiff = 100f;
         }
-        return sum / matching;
+        else {
+            averageWeightDiff = weightDiffSum / matching;
+        }
+
+        float compatibility = (COMPAT_COEF_1 * excess + COMPAT_COEF_2 * disjoint) / N;
+        compatibility += COMPAT_COEF_3 * averageWeightDiff;
+
+        return compatibility;
     }
 
 
@@ -148,15 +189,16 @@ class Species {
 
 
     /**
-     * Creates a child for the next generation.
+     * Creates a child for the next generation. The child shares the behavior of its parent,
+     * which is copied with Individual.ownBehavior on the thread that called naturalSelection.
      *
      * @return new individual;
      */
-    Individual makeAChild (Random r, Innovation innovation) {
+    Individual makeAChild (Random r, InnovationHistory innovation) {
         Individual child;
 
         if (r.nextFloat() < MUTATION_WITHOUT_CROSSOVER_PROBABILITY) {
-            child = pickAMember(r).copy();
+            child = pickAMember(r).copySharingBehavior();
         } else {
             Individual parent1 = pickAMember(r);
             Individual parent2 = pickAMember(r);
@@ -166,7 +208,7 @@ class Species {
                     Genome.crossover(parent2.getBrain(), parent1.getBrain(), r),
                     parent1.getNumberSensors(),
                     parent1.getNumberControls(),
-                    parent1.getBehavior().copy()
+                    parent1.getBehavior()
             );
         }
 
@@ -176,29 +218,83 @@ class Species {
 
 
     /**
-     * Selects a random member based on the fitnesses.
+     * Builds the structures used to pick parents. Must be called after the members and their
+     * fitnesses are final for this generation, that is, after thanos.
+     *
+     * @param selection strategy used to pick parents;
+     */
+    void prepareSelection (Population.SELECTION selection) {
+        this.selection = selection;
+
+        cumulativeFitness = new float[members.size()];
+        float runningSum = 0;
+        for (int i = 0; i < members.size(); i++) {
+            runningSum += members.get(i).getFitness();
+            cumulativeFitness[i] = runningSum;
+        }
+    }
+
+
+    /**
+     * Selects a random member with the strategy given to prepareSelection.
      *
      * @param r Random;
      *
      * @return a member;
      */
-    private Individual pickAMember (Random r) {
-        float fitnessSum = 0;
-        for (Individual ind : members) {
-            fitnessSum += ind.getFitness();
+    Individual pickAMember (Random r) {
+        if (selection == Population.SELECTION.TOURNAMENT) {
+            return tournament(r);
         }
+        return roulette(r);
+    }
 
+
+    /**
+     * Selects a random member with probability proportional to its fitness, with a binary search
+     * over the running sum of the fitnesses. Fitnesses are expected not to be negative.
+     *
+     * @param r Random;
+     *
+     * @return a member;
+     */
+    private Individual roulette (Random r) {
+        float fitnessSum = cumulativeFitness[cumulativeFitness.length - 1];
         float rand = r.nextFloat()*fitnessSum;
-        float runningSum = 0;
 
-        for (Individual ind : members) {
-            runningSum += ind.getFitness();
-            if (runningSum > rand) {
-                return ind;
+        // First member whose running sum is greater than rand.
+        int lo = 0;
+        int hi = cumulativeFitness.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulativeFitness[mid] > rand) {
+                hi = mid;
+            }
+            else {
+                lo = mid + 1;
             }
         }
 
-        return members.get(0);
+        return lo < members.size() ? members.get(lo) : members.get(0);
+    }
+
+
+    /**
+     * Picks a few random members and selects the fittest of them.
+     *
+     * @param r Random;
+     *
+     * @return a member;
+     */
+    private Individual tournament (Random r) {
+        Individual winner = members.get(r.nextInt(members.size()));
+        for (int i = 1; i < TOURNAMENT_SIZE; i++) {
+            Individual contender = members.get(r.nextInt(members.size()));
+            if (contender.getFitness() > winner.getFitness()) {
+                winner = contender;
+            }
+        }
+        return winner;
     }
 
 
@@ -213,23 +309,14 @@ class Species {
 
 
     /**
-     * Sorts the members of this species by their fitness number (descending order).
-     * (Insertion sort is awesome, btw).
+     * Sorts the members of this species by their fitness number (descending order, stable).
+     * Only the members that survive thanos need to be in order, so the rest are just moved
+     * after them.
      * After, it updates the best individual of this species (if it improved) and its genome is the
      * new rep.
      */
     void sort () {
-        int i = 1;
-        while (i < members.size()) {
-            Individual ind = members.get(i);
-            int j = i - 1;
-            while (j >= 0 && members.get(j).getFitness() < ind.getFitness()) {
-                members.set(j+1, members.get(j));
-                j--;
-            }
-            members.set(j+1, ind);
-            i++;
-        }
+        PartialSort.sortFirst(members, survivors(), BY_FITNESS);
 
         if (members.size() == 0) {
             staleness = 20;
@@ -251,10 +338,18 @@ class Species {
      * Kill the worse half of the species.
      */
     void thanos () {
+        members.subList(survivors(), members.size()).clear();
+    }
+
+
+    /**
+     * Number of members kept by thanos: half of them, or all when there are only two.
+     *
+     * @return number of survivors;
+     */
+    private int survivors () {
         int size = members.size();
-        if (size > 2) {
-            members.subList(size/2, size).clear();
-        }
+        return size > 2 ? size/2 : size;
     }
 
 
@@ -302,6 +397,26 @@ class Species {
     }
 
 
+    /**
+     * Returns the rep of this species.
+     *
+     * @return rep genome;
+     */
+    Genome getRep () {
+        return rep;
+    }
+
+
+    /**
+     * Returns the members of this generation.
+     *
+     * @return list of members;
+     */
+    List<Individual> getMembers () {
+        return members;
+    }
+
+
     /**
      * Returns the best ever individual of this species.
      *
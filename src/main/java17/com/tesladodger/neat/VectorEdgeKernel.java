@@ -0,0 +1,38 @@
+package com.tesladodger.neat;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+ * Edge kernel using the Vector API. Loaded by EdgeKernel.load when the jdk.incubator.vector
+ * module is available.
+ * The multiplication and the addition are kept separate (no fma), so the results are exactly
+ * the same as the scalar kernel.
+ */
+final class VectorEdgeKernel implements EdgeKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    public void propagate (float[] from, float[] to, int patterns, float weight) {
+        FloatVector w = FloatVector.broadcast(SPECIES, weight);
+
+        int j = 0;
+        for (int bound = SPECIES.loopBound(patterns); j < bound; j += SPECIES.length()) {
+            FloatVector x = FloatVector.fromArray(SPECIES, from, j);
+            FloatVector y = FloatVector.fromArray(SPECIES, to, j);
+            x.mul(w).add(y).intoArray(to, j);
+        }
+
+        // Remaining patterns.
+        for (; j < patterns; j++) {
+            to[j] += from[j] * weight;
+        }
+    }
+
+    public int minPatterns () {
+        // A few full vectors per call, otherwise the scalar loop is as fast or faster.
+        return 4 * SPECIES.length();
+    }
+
+}
@@ -1,8 +1,11 @@
+import com.tesladodger.neat.Activation;
 import com.tesladodger.neat.ConnectionGene;
 import com.tesladodger.neat.Genome;
 import com.tesladodger.neat.Innovation;
 import com.tesladodger.neat.NodeGene;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -11,6 +14,7 @@ import java.util.Random;
 
 public class GenomeTest {
 
+    @SuppressWarnings("deprecation")
     private static void unitTestInnovationTracking () {
         Random r = new Random();
         Innovation innovation = new Innovation();
@@ -85,9 +89,154 @@ public class GenomeTest {
 
     }
 
+    private static void unitTestSetWeight () {
+        Genome genome = new Genome(1, 1, false);
+        genome.addConnectionGene(new ConnectionGene(0, 1, 1, true, 0));
+        float[] inputs = {1};
+
+        // Compile the network, then change the weight through the connections.
+        float before = genome.feedForward(inputs)[0];
+        genome.getConnections().get(0).setWeight(-1);
+        float after = genome.feedForward(inputs)[0];
+
+        assert after < before : "A weight set on the connections was ignored by feedForward.";
+        assert after == genome.copy().feedForward(inputs)[0];
+
+        // Changing the connections of a copy doesn't change the original, nor the other way.
+        Genome copy = genome.copy();
+        copy.getConnections().get(0).setWeight(1);
+        assert genome.feedForward(inputs)[0] == after : "Changing a copy changed the original.";
+        assert copy.feedForward(inputs)[0] == before;
+        genome.getConnections().get(0).setWeight(2);
+        assert copy.feedForward(inputs)[0] == before : "Changing the original changed a copy.";
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void unitTestConnectionKeys () {
+        Genome genome = new Genome(2, 1, false);
+        genome.addConnectionGene(new ConnectionGene(0, 2, 1, true, 7));
+        genome.addConnectionGene(new ConnectionGene(1, 2, 1, true, 2));
+        genome.addConnectionGene(new ConnectionGene(3, 2, 1, true, 5));
+
+        // The keys come in the order the connections were added, as the map iterates them.
+        assert genome.getConnectionKeys().equals(Arrays.asList(7, 2, 5));
+        assert new ArrayList<>(genome.getConnections().keySet()).equals(genome.getConnectionKeys());
+        assert genome.getConnections().get(2).getInNode() == 1;
+        assert !genome.getConnections().containsKey(3);
+    }
+
+    private static void unitTestNodeActivation () {
+        Genome genome = new Genome(1, 1, false);
+        genome.addConnectionGene(new ConnectionGene(0, 1, 1, true, 0));
+        float[] inputs = {2};
+        float before = genome.feedForward(inputs)[0];
+
+        // The input passed as is, and a function of our own on the output, on a copy.
+        Genome copy = genome.copy();
+        copy.setNodeActivation(0, Activation.LINEAR);
+        copy.setNodeActivation(1, new Activation() {
+            public float apply (float x) {
+                return -x;
+            }
+        });
+        assert copy.feedForward(inputs)[0] == -2 : "The node activation was ignored.";
+        assert genome.feedForward(inputs)[0] == before : "Changing a copy changed the original.";
+
+        // Back to the one of the genome.
+        copy.setNodeActivation(0, null);
+        copy.setNodeActivation(1, null);
+        assert copy.feedForward(inputs)[0] == before;
+
+        try {
+            copy.setNodeActivation(5, Activation.TANH);
+            assert false : "Set the activation of a node that doesn't exist.";
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private static void unitTestFastSigmoid () {
+        float maxError = 0;
+        for (int i = -1000000; i <= 1000000; i++) {
+            float x = i / 100000f;
+            float error = Math.abs(Activation.FAST_SIGMOID.apply(x) - Activation.STEEPENED_SIGMOID.apply(x));
+            maxError = Math.max(maxError, error);
+        }
+        assert maxError < 2e-6f : "Fast sigmoid error is " + maxError;
+    }
+
+    private static void unitTestBatchedFeedForward () {
+        Random r = new Random();
+        Innovation innovation = new Innovation();
+
+        for (int g = 0; g < 20; g++) {
+            Genome genome = new Genome(5, 3, false);
+            genome.mutate(r, innovation);
+            for (int i = 0; i < 10; i++) {
+                genome.addNodeMutation(r, innovation);
+                genome.addConnectionMutation(r, innovation);
+            }
+
+            // An odd number of patterns. Batches big enough for the vector kernel are tested in
+            // EdgeKernelTest.
+            float[][] patterns = new float[37][5];
+            for (float[] pattern : patterns) {
+                for (int i = 0; i < pattern.length; i++) {
+                    pattern[i] = r.nextFloat() * 4 - 2;
+                }
+            }
+
+            float[][] batch = genome.feedForward(patterns);
+            for (int p = 0; p < patterns.length; p++) {
+                float[] single = genome.feedForward(patterns[p]);
+                for (int o = 0; o < single.length; o++) {
+                    assert single[o] == batch[p][o] : "Batched output differs from feedForward.";
+                }
+            }
+        }
+    }
+
+    private static void unitTestCopyOnWrite () {
+        Random r = new Random();
+        Innovation innovation = new Innovation();
+
+        Genome original = new Genome(3, 2, false);
+        original.mutate(r, innovation);
+        for (int i = 0; i < 5; i++) {
+            original.addNodeMutation(r, innovation);
+        }
+        float[] inputs = {.3f, -.7f, 1.1f};
+        float[] before = original.feedForward(inputs);
+        int connections = original.getConnections().size();
+
+        // Mutating the copies must not change the original, nor each other.
+        Genome copy = original.copy();
+        Genome copyOfCopy = copy.copy();
+        for (int i = 0; i < 5; i++) {
+            copy.addNodeMutation(r, innovation);
+            copy.addConnectionMutation(r, innovation);
+        }
+
+        assert original.getConnections().size() == connections;
+        assert copyOfCopy.getConnections().size() == connections;
+        assert copy.getConnections().size() > connections;
+        float[] after = original.feedForward(inputs);
+        float[] other = copyOfCopy.feedForward(inputs);
+        for (int o = 0; o < before.length; o++) {
+            assert before[o] == after[o] : "Mutating a copy changed the original.";
+            assert before[o] == other[o] : "Mutating a copy changed another copy.";
+        }
+    }
+
     private static void unitTests () {
         unitTestInnovationTracking();
         unitTestIsFullyConnected();
+        unitTestFastSigmoid();
+        unitTestBatchedFeedForward();
+        unitTestCopyOnWrite();
+        unitTestSetWeight();
+        unitTestConnectionKeys();
+        unitTestNodeActivation();
         //unitTestFeedForward();
     }
 
@@ -0,0 +1,566 @@
+import com.tesladodger.neat.Behavior;
+import com.tesladodger.neat.GenerationListener;
+import com.tesladodger.neat.GenerationStats;
+import com.tesladodger.neat.Individual;
+import com.tesladodger.neat.Innovation;
+import com.tesladodger.neat.Population;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public class PopulationTest {
+
+    /* Behavior that never dies and reuses its sensor matrix. */
+    private static class Immortal implements Behavior {
+
+        private final float[][] sensors;
+
+        private Immortal () {
+            sensors = new float[][] {{0, 1, 0}, {1, 0, 1}, {.5f, .5f, -1}};
+        }
+
+        public float[][] updateSensors () {
+            return sensors;
+        }
+
+        public void move (float[][] controls) {}
+
+        public boolean solutionFound () {
+            return false;
+        }
+
+        public void render () {}
+
+        public boolean isAlive () {
+            return true;
+        }
+
+        public float fitnessFunction (Individual individual) {
+            return 1;
+        }
+
+        public Immortal copy () {
+            return new Immortal();
+        }
+
+        public Immortal copyForReplay () {
+            return new Immortal();
+        }
+    }
+
+    /* Behavior that records the threads that update it. */
+    private static class Recorder extends Immortal {
+
+        private final Set<Thread> threads;
+
+        private Recorder (Set<Thread> threads) {
+            this.threads = threads;
+        }
+
+        public float[][] updateSensors () {
+            threads.add(Thread.currentThread());
+            // Slow enough that the work is spread between the threads.
+            long end = System.nanoTime() + 200000;
+            while (System.nanoTime() < end);
+            return super.updateSensors();
+        }
+
+        public Recorder copy () {
+            return new Recorder(threads);
+        }
+    }
+
+    private static void unitTestUpdateUsesSeveralThreads () {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        Population population = new Population(3, 2, 64, new Random(), new Innovation(),
+                new Recorder(threads), 4);
+
+        for (int i = 0; i < 10; i++) {
+            population.updateAliveIndividuals();
+        }
+        population.shutdown();
+
+        System.out.println("Threads used to update: " + threads.size());
+        assert threads.size() > 1 : "The individuals were updated on a single thread.";
+    }
+
+    /* Behavior whose start depends on a random source shared by all the copies, so the
+     * individuals only get the same starts when the copies are made in the same order. */
+    private static class Walker extends Immortal {
+
+        private final Random source;
+        private final float start;
+        private final float[][] sensors;
+        private float position;
+        private int steps;
+
+        private Walker (Random source, float start) {
+            this.source = source;
+            this.start = start;
+            sensors = new float[][] {{start, 1 - start, .5f}};
+        }
+
+        public float[][] updateSensors () {
+            sensors[0][2] = position;
+            return sensors;
+        }
+
+        public void move (float[][] controls) {
+            position += controls[0][0] - controls[0][1];
+            steps++;
+        }
+
+        public boolean isAlive () {
+            return steps < 10;
+        }
+
+        public float fitnessFunction (Individual individual) {
+            return 1 + position * position;
+        }
+
+        public Walker copy () {
+            return new Walker(source, source.nextFloat());
+        }
+
+        public Walker copyForReplay () {
+            return new Walker(source, start);
+        }
+    }
+
+    /**
+     * Runs a few generations from a fixed seed and returns the best score and number of
+     * species of each.
+     */
+    private static float[] seededRun (int threads) {
+        Random r = new Random(21);
+        Innovation innovation = new Innovation();
+        Population population = new Population(3, 2, 150, r, innovation,
+                new Walker(new Random(5), 0), threads);
+        population.setMode(Population.MODE.ONLY_SHOW_BEST);
+
+        int generations = 15;
+        float[] run = new float[2 * generations];
+        for (int g = 0; g < generations; g++) {
+            population.runSimulation(r, innovation);
+            run[2*g] = population.getBestScore();
+            run[2*g + 1] = population.getNumberSpecies();
+        }
+        population.shutdown();
+        return run;
+    }
+
+    private static void unitTestThreadsGiveTheSameRun () {
+        float[] single = seededRun(1);
+        float[] parallel = seededRun(4);
+        for (int i = 0; i < single.length; i++) {
+            assert single[i] == parallel[i] : "Runs differ at generation " + i / 2 + ": " +
+                    single[i] + " and " + parallel[i];
+        }
+    }
+
+    /* Behavior that blocks on every step, like one waiting for a simulator, and dies after a
+     * few steps. */
+    private static class Sleeper extends Immortal {
+
+        private int steps;
+
+        public void move (float[][] controls) {
+            steps++;
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public boolean isAlive () {
+            return steps < 5;
+        }
+
+        public Sleeper copy () {
+            return new Sleeper();
+        }
+
+        public Sleeper copyForReplay () {
+            return new Sleeper();
+        }
+    }
+
+    /* Behavior that lives 5 steps and, in its first one, checks in and waits to be let go.
+     * The copies share the latches and the count of moves. */
+    private static class Gate extends Immortal {
+
+        private final CountDownLatch entered;
+        private final CountDownLatch proceed;
+        private final AtomicInteger moves;
+        private final AtomicBoolean timedOut;
+        private int steps;
+
+        private Gate (CountDownLatch entered, CountDownLatch proceed, AtomicInteger moves,
+                      AtomicBoolean timedOut) {
+            this.entered = entered;
+            this.proceed = proceed;
+            this.moves = moves;
+            this.timedOut = timedOut;
+        }
+
+        public void move (float[][] controls) {
+            if (steps == 0) {
+                entered.countDown();
+                try {
+                    if (!proceed.await(30, TimeUnit.SECONDS)) timedOut.set(true);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            steps++;
+            moves.incrementAndGet();
+        }
+
+        public boolean isAlive () {
+            return steps < 5;
+        }
+
+        public Gate copy () {
+            return new Gate(entered, proceed, moves, timedOut);
+        }
+
+        public Gate copyForReplay () {
+            return copy();
+        }
+    }
+
+    private static void unitTestEpisodeThreads () throws Exception {
+        int size = 50;
+        Random r = new Random();
+        Innovation innovation = new Innovation();
+
+        // Every episode waits in its first step until all of them got there, which only happens
+        // if they run at the same time.
+        CountDownLatch together = new CountDownLatch(size);
+        AtomicInteger moves = new AtomicInteger();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        Population population = new Population(3, 2, size, r, innovation,
+                new Gate(together, together, moves, timedOut));
+        population.setMode(Population.MODE.ONLY_SHOW_BEST);
+        population.setEpisodeThreads(true);
+
+        population.runSimulation(r, innovation);
+        population.shutdown();
+        assert !timedOut.get() : "The episodes didn't run at the same time.";
+        assert moves.get() == 5 * size;
+        assert population.getGeneration() == 1;
+
+        // Asynchronous, with a listener: the steps are those of the longest episode and the
+        // listener hears about every episode that ends.
+        final CountDownLatch entered = new CountDownLatch(size);
+        CountDownLatch proceed = new CountDownLatch(1);
+        moves.set(0);
+        population = new Population(3, 2, size, r, innovation,
+                new Gate(entered, proceed, moves, timedOut), 2);
+        population.setEpisodeThreads(true);
+
+        final AtomicInteger ended = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger(-1);
+        GenerationListener listener = new GenerationListener() {
+            public void stepDone (int generation, int step, int alive) {
+                ended.incrementAndGet();
+                running.set(alive);
+            }
+        };
+
+        // Cancel while every episode is in its first step. Each one sees the request after that
+        // step and stops, leaving its individual alive.
+        final CompletableFuture<GenerationStats> future =
+                population.evaluateGenerationAsync(r, innovation, listener);
+        entered.await();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        Thread canceller = new Thread(new Runnable() {
+            public void run () {
+                cancelled.set(future.cancel(false));
+            }
+        });
+        canceller.start();
+        while (canceller.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+        proceed.countDown();
+        canceller.join();
+
+        assert cancelled.get() && future.isCancelled();
+        assert moves.get() == size : "The episodes kept stepping after cancel: " + moves.get();
+        assert population.getGeneration() == 0;
+        assert population.getNumberOfAliveIndividuals() == size;
+
+        // Resume: the episodes do their last 4 steps.
+        ended.set(0);
+        GenerationStats stats = population.evaluateGenerationAsync(r, innovation, listener).get();
+        population.shutdown();
+        assert stats.getSteps() == 4 : "Steps: " + stats.getSteps();
+        assert ended.get() == size && running.get() == 0;
+        assert moves.get() == 5 * size;
+        assert population.getGeneration() == 1;
+    }
+
+    /* Behavior whose first copy throws in its first step, once all the others are waiting in
+     * theirs. The others then finish that step when let go and would live 100 steps. The copies
+     * share the latches, the count of moves and the thread that threw. */
+    private static class Failing extends Immortal {
+
+        private final AtomicInteger copies;
+        private final boolean thrower;
+        private final CountDownLatch entered;
+        private final CountDownLatch thrown;
+        private final AtomicReference<Thread> throwing;
+        private final CountDownLatch hold;
+        private final AtomicInteger moves;
+        private int steps;
+
+        private Failing (AtomicInteger copies, boolean thrower, CountDownLatch entered,
+                         CountDownLatch thrown, AtomicReference<Thread> throwing,
+                         CountDownLatch hold, AtomicInteger moves) {
+            this.copies = copies;
+            this.thrower = thrower;
+            this.entered = entered;
+            this.thrown = thrown;
+            this.throwing = throwing;
+            this.hold = hold;
+            this.moves = moves;
+        }
+
+        public void move (float[][] controls) {
+            if (thrower) {
+                awaitUninterruptibly(entered);
+                throwing.set(Thread.currentThread());
+                thrown.countDown();
+                throw new IllegalStateException("Simulator crashed.");
+            }
+            if (steps == 0) {
+                entered.countDown();
+                awaitUninterruptibly(hold);
+            }
+            steps++;
+            moves.incrementAndGet();
+        }
+
+        public boolean isAlive () {
+            return steps < 100;
+        }
+
+        public Failing copy () {
+            return new Failing(copies, copies.getAndIncrement() == 0, entered, thrown, throwing,
+                    hold, moves);
+        }
+
+        public Failing copyForReplay () {
+            return copy();
+        }
+    }
+
+    private static void unitTestFailedEpisodeStopsTheOthers () throws Exception {
+        int size = 10;
+        CountDownLatch entered = new CountDownLatch(size - 1);
+        CountDownLatch thrown = new CountDownLatch(1);
+        AtomicReference<Thread> throwing = new AtomicReference<>();
+        CountDownLatch hold = new CountDownLatch(1);
+        AtomicInteger moves = new AtomicInteger();
+
+        Random r = new Random();
+        Innovation innovation = new Innovation();
+        Population population = new Population(3, 2, size, r, innovation,
+                new Failing(new AtomicInteger(), false, entered, thrown, throwing, hold, moves), 2);
+        population.setEpisodeThreads(true);
+
+        CompletableFuture<GenerationStats> future =
+                population.evaluateGenerationAsync(r, innovation, null);
+        thrown.await();
+        // Let the others go once the failing episode is over and its thread idle again.
+        while (throwing.get().getState() == Thread.State.RUNNABLE) {
+            Thread.yield();
+        }
+        // The other episodes are still in their first step, so the evaluation can't be over.
+        assert !future.isDone() : "The evaluation ended while episodes were still running.";
+        hold.countDown();
+
+        try {
+            future.get();
+            assert false : "The failure of an episode was lost.";
+        } catch (ExecutionException e) {
+            assert e.getCause().getCause() instanceof IllegalStateException;
+        }
+        // Every other episode finished its step and stopped there.
+        assert moves.get() == size - 1 : "Moves after the failure: " + moves.get();
+        population.shutdown();
+    }
+
+    private static void unitTestAsyncGeneration () throws Exception {
+        Random r = new Random();
+        Innovation innovation = new Innovation();
+        Population population = new Population(3, 2, 20, r, innovation, new Sleeper(), 2);
+
+        final AtomicInteger steps = new AtomicInteger();
+        GenerationListener listener = new GenerationListener() {
+            public void stepDone (int generation, int step, int alive) {
+                steps.set(step);
+            }
+        };
+
+        GenerationStats stats = population.evaluateGenerationAsync(r, innovation, listener).get();
+        System.out.println(stats);
+        assert stats.getGeneration() == 0;
+        assert stats.getSteps() == 5 && steps.get() == 5;
+        assert stats.getNumberOfSpecies() == population.getNumberSpecies();
+        assert population.getGeneration() == 1;
+
+        // Cancel during the first step, from another thread. The listener holds the worker until
+        // cancel is waiting for it, so the worker sees the request before the second step.
+        final CountDownLatch firstStep = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final CompletableFuture<GenerationStats> future = population.evaluateGenerationAsync(r,
+                innovation, new GenerationListener() {
+                    public void stepDone (int generation, int step, int alive) {
+                        steps.set(step);
+                        if (step == 1) {
+                            firstStep.countDown();
+                            awaitUninterruptibly(proceed);
+                        }
+                    }
+                });
+        firstStep.await();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        Thread canceller = new Thread(new Runnable() {
+            public void run () {
+                cancelled.set(future.cancel(false));
+            }
+        });
+        canceller.start();
+        while (canceller.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+        proceed.countDown();
+        canceller.join();
+
+        // cancel returned after the worker exited, so the population can be checked right away.
+        assert cancelled.get() && future.isCancelled();
+        assert steps.get() == 1 : "The worker kept stepping after cancel: " + steps.get();
+        assert population.getGeneration() == 1 : "Natural selection ran after cancelling.";
+        assert population.getNumberOfAliveIndividuals() == 20;
+
+        // Two evaluations in a row: the first resumes the cancelled generation, the second
+        // starts after the first exits.
+        CompletableFuture<GenerationStats> resumed =
+                population.evaluateGenerationAsync(r, innovation, null);
+        CompletableFuture<GenerationStats> chained =
+                population.evaluateGenerationAsync(r, innovation, null);
+        GenerationStats resumedStats = resumed.get();
+        GenerationStats chainedStats = chained.get();
+        assert resumedStats.getGeneration() == 1 && resumedStats.getSteps() == 4;
+        assert chainedStats.getGeneration() == 2 && chainedStats.getSteps() == 5;
+        assert population.getGeneration() == 3;
+
+        // Only the worker completes the evaluation, the stats are still the ones it made.
+        final CompletableFuture<GenerationStats> running =
+                population.evaluateGenerationAsync(r, innovation, null);
+        assertUnsupported(new Runnable() {
+            public void run () {
+                running.complete(null);
+            }
+        });
+        assertUnsupported(new Runnable() {
+            public void run () {
+                running.completeExceptionally(new IllegalStateException());
+            }
+        });
+        assertUnsupported(new Runnable() {
+            public void run () {
+                running.obtrudeValue(null);
+            }
+        });
+        assertUnsupported(new Runnable() {
+            public void run () {
+                running.obtrudeException(new IllegalStateException());
+            }
+        });
+        GenerationStats runningStats = running.get();
+        assert runningStats != null && runningStats.getGeneration() == 3;
+
+        population.shutdown();
+    }
+
+
+    private static void assertUnsupported (Runnable call) {
+        try {
+            call.run();
+            assert false : "Completed an evaluation from outside the worker.";
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+    }
+
+    private static void awaitUninterruptibly (CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Bytes allocated so far by every live thread, the pool workers included.
+     */
+    private static long allocatedBytes (com.sun.management.ThreadMXBean bean) {
+        long total = 0;
+        for (long bytes : bean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    private static void unitTestStepDoesNotAllocate (int threads, long maxBytesPerStep) {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        Random r = new Random();
+        Innovation innovation = new Innovation();
+        Population population = new Population(3, 2, 50, r, innovation, new Immortal(), threads);
+
+        // Let the buffers be created and the code be compiled.
+        for (int i = 0; i < 20000; i++) {
+            population.updateAliveIndividuals();
+        }
+
+        int steps = 10000;
+        long before = allocatedBytes(bean);
+        for (int i = 0; i < steps; i++) {
+            population.updateAliveIndividuals();
+        }
+        long allocated = allocatedBytes(bean) - before;
+        population.shutdown();
+
+        System.out.println("Bytes allocated in " + steps + " steps with " + threads +
+                " threads: " + allocated);
+        assert allocated < steps * maxBytesPerStep : "The step loop allocates " + allocated +
+                " bytes.";
+    }
+
+    public static void main (String[] args) throws Exception {
+        unitTestStepDoesNotAllocate(1, 1);
+        // With a pool, the calling thread allocates the node it waits on for each step.
+        unitTestStepDoesNotAllocate(4, 100);
+        unitTestUpdateUsesSeveralThreads();
+        unitTestThreadsGiveTheSameRun();
+        unitTestEpisodeThreads();
+        unitTestFailedEpisodeStopsTheOthers();
+        unitTestAsyncGeneration();
+    }
+}
@@ -0,0 +1,109 @@
+package com.tesladodger.neat;
+
+import java.util.Random;
+
+
+/**
+ * Compares feeding a batch of patterns through a network one pattern at a time with the batched
+ * forward pass, for several batch sizes, and checks that both give exactly the same outputs.
+ * Run with -ea. The JIT compiles the loops for the batch sizes it sees first, so for steady
+ * state numbers pass a single batch size as argument, one run each. Add --add-modules
+ * jdk.incubator.vector (and the java17 classes) to measure the vector kernel, or
+ * -Dneat.vector=false to force the scalar one.
+ */
+public class ActivationBenchmark {
+
+    private static final int[] BATCHES = {1, 2, 4, 8, 16, 64, 256, 1024};
+
+    private static final int INPUTS = 20;
+    private static final int OUTPUTS = 4;
+
+    public static void main (String[] args) {
+        int[] batches = BATCHES;
+        if (args.length > 0) {
+            batches = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                batches[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        Phenotype network = network(new Random(7));
+        System.out.println("Nodes: " + network.size());
+
+        System.out.println("  batch   per pattern     batched   (us / call)");
+        for (int batch : batches) {
+            float[][] patterns = patterns(batch, new Random(batch));
+            float[][] single = new float[batch][OUTPUTS];
+            float[][] batched = new float[batch][OUTPUTS];
+            float[] values = new float[network.size()];
+            float[][] rows = new float[network.size()][batch];
+
+            int repetitions = Math.max(2000, 100000000 / (batch * network.size()));
+            for (int i = 0; i < 3; i++) {
+                perPattern(network, patterns, single, values, repetitions);
+                batched(network, patterns, batched, rows, repetitions);
+            }
+
+            double perPatternTime = perPattern(network, patterns, single, values, repetitions);
+            double batchedTime = batched(network, patterns, batched, rows, repetitions);
+            System.out.printf("%7d %13.2f %11.2f%n", batch, perPatternTime, batchedTime);
+
+            for (int j = 0; j < batch; j++) {
+                for (int o = 0; o < OUTPUTS; o++) {
+                    assert single[j][o] == batched[j][o] : "Batched output differs, batch " + batch;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * A network with every input connected and about 40 hidden nodes.
+     */
+    private static Phenotype network (Random r) {
+        Innovation innovation = new Innovation();
+        Genome genome = new Genome(INPUTS, OUTPUTS, false);
+        genome.mutate(r, innovation);
+        for (int i = 0; i < 40; i++) {
+            genome.addNodeMutation(r, innovation);
+            for (int c = 0; c < 5; c++) {
+                genome.addConnectionMutation(r, innovation);
+            }
+        }
+        return genome.getPhenotype();
+    }
+
+
+    private static float[][] patterns (int batch, Random r) {
+        float[][] patterns = new float[batch][INPUTS];
+        for (float[] pattern : patterns) {
+            for (int i = 0; i < INPUTS; i++) {
+                pattern[i] = r.nextFloat() * 4 - 2;
+            }
+        }
+        return patterns;
+    }
+
+
+    private static double perPattern (Phenotype network, float[][] patterns, float[][] outputs,
+                                      float[] values, int repetitions) {
+        long start = System.nanoTime();
+        for (int i = 0; i < repetitions; i++) {
+            for (int j = 0; j < patterns.length; j++) {
+                network.activate(patterns[j], outputs[j], values);
+            }
+        }
+        return (System.nanoTime() - start) / 1000.0 / repetitions;
+    }
+
+
+    private static double batched (Phenotype network, float[][] patterns, float[][] outputs,
+                                   float[][] rows, int repetitions) {
+        long start = System.nanoTime();
+        for (int i = 0; i < repetitions; i++) {
+            network.activate(patterns, outputs, rows);
+        }
+        return (System.nanoTime() - start) / 1000.0 / repetitions;
+    }
+
+}
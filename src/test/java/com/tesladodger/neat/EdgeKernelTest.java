@@ -0,0 +1,102 @@
+package com.tesladodger.neat;
+
+import java.util.Random;
+
+
+/**
+ * Tests of the edge kernel the forward pass uses, against the scalar one. Run with -ea, and
+ * with --add-modules jdk.incubator.vector and the java17 classes to test the vector kernel, as
+ * the Gradle task does.
+ */
+public class EdgeKernelTest {
+
+    private static final int INPUTS = 5;
+    private static final int OUTPUTS = 3;
+
+
+    /**
+     * For every batch length up to a few times the smallest batch the kernel is used for, so
+     * with and without remainders after the full vectors, the kernel gives exactly the same
+     * values as the scalar loop and doesn't write past the batch.
+     */
+    private static void unitTestPropagate (EdgeKernel kernel) {
+        EdgeKernel scalar = new EdgeKernel.Scalar();
+        Random r = new Random(5);
+
+        int longest = 3 * Math.min(kernel.minPatterns(), 64) + 7;
+        for (int patterns = 0; patterns <= longest; patterns++) {
+            float[] from = random(patterns + 8, r);
+            float[] to = random(patterns + 8, r);
+            float[] expected = to.clone();
+            float weight = r.nextFloat() * 4 - 2;
+
+            kernel.propagate(from, to, patterns, weight);
+            scalar.propagate(from, expected, patterns, weight);
+
+            for (int j = 0; j < to.length; j++) {
+                assert to[j] == expected[j] : "Length " + patterns + ", pattern " + j;
+            }
+        }
+    }
+
+
+    /**
+     * Batches just under, at and over the smallest batch the kernel is used for, the last ones
+     * with an odd remainder, give the same outputs as feeding the patterns one at a time.
+     */
+    private static void unitTestBatchedFeedForward (EdgeKernel kernel) {
+        Random r = new Random(9);
+        int min = Math.min(kernel.minPatterns(), 64);
+        int[] batches = {min - 1, min, min + 1, 2 * min + 3, 3 * min + 5};
+
+        for (int g = 0; g < 20; g++) {
+            Innovation innovation = new Innovation();
+            Genome genome = new Genome(INPUTS, OUTPUTS, false);
+            genome.mutate(r, innovation);
+            for (int i = 0; i < 10; i++) {
+                genome.addNodeMutation(r, innovation);
+                genome.addConnectionMutation(r, innovation);
+            }
+
+            for (int batch : batches) {
+                float[][] patterns = new float[batch][];
+                for (int p = 0; p < batch; p++) {
+                    patterns[p] = random(INPUTS, r);
+                }
+
+                float[][] outputs = genome.feedForward(patterns);
+                for (int p = 0; p < batch; p++) {
+                    float[] single = genome.feedForward(patterns[p]);
+                    for (int o = 0; o < OUTPUTS; o++) {
+                        assert single[o] == outputs[p][o] : "Batch " + batch + ", pattern " + p;
+                    }
+                }
+            }
+        }
+    }
+
+
+    private static float[] random (int n, Random r) {
+        float[] values = new float[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = r.nextFloat() * 4 - 2;
+        }
+        return values;
+    }
+
+
+    public static void main (String[] args) {
+        EdgeKernel kernel = EdgeKernel.load();
+        if (kernel instanceof EdgeKernel.Scalar) {
+            System.out.println("Vector kernel not available, testing the scalar one.");
+        }
+        else {
+            System.out.println("Testing " + kernel.getClass().getSimpleName() + ", used from "
+                    + kernel.minPatterns() + " patterns.");
+        }
+
+        unitTestPropagate(kernel);
+        unitTestBatchedFeedForward(kernel);
+    }
+
+}
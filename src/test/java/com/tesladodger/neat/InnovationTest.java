@@ -0,0 +1,244 @@
+package com.tesladodger.neat;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Tests of both innovation histories. Run with -ea.
+ */
+public class InnovationTest {
+
+    private static final int THREADS = 8;
+
+    /* Connections every thread asks for, and connections only one thread asks for. */
+    private static final int SHARED = 2000;
+    private static final int OWN = 1000;
+
+    /* Connections left after pruning. */
+    private static final int KEPT = 100;
+
+    /* Slots of an empty index. */
+    private static final int MIN_CAPACITY = 16;
+
+
+    /**
+     * Several threads ask at once for the numbers of the same connections, each in its own
+     * order, and of connections only they create. Every thread must get the same number for the
+     * same connection, different connections must get different numbers, and the numbers given
+     * must be exactly 0 to size - 1.
+     */
+    private static void unitTestManyThreads (final InnovationHistory innovation) throws Exception {
+        final int[][] shared = new int[THREADS][SHARED];
+        final int[][] own = new int[THREADS][OWN];
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run () {
+                    int[] order = shuffled(SHARED, new Random(thread));
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int k = 0; k < SHARED; k++) {
+                        int c = order[k];
+                        shared[thread][c] = innovation.getInnovationNumber(c, c + 1);
+                        if (k < OWN) {
+                            own[thread][k] = innovation.getInnovationNumber(-1 - thread, k);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int distinct = SHARED + THREADS * OWN;
+        assert innovation.size() == distinct : "Size " + innovation.size() + ", expected " + distinct;
+
+        boolean[] given = new boolean[distinct];
+        for (int c = 0; c < SHARED; c++) {
+            for (int t = 1; t < THREADS; t++) {
+                assert shared[t][c] == shared[0][c] : "Connection " + c + " got two numbers.";
+            }
+            mark(given, shared[0][c]);
+        }
+        for (int t = 0; t < THREADS; t++) {
+            for (int k = 0; k < OWN; k++) {
+                mark(given, own[t][k]);
+            }
+        }
+
+        // Asking again gives the same numbers and doesn't create new ones.
+        for (int c = 0; c < SHARED; c++) {
+            assert innovation.getInnovationNumber(c, c + 1) == shared[0][c];
+        }
+        assert innovation.size() == distinct;
+    }
+
+
+    /**
+     * Fills a history with many connections and prunes all but a few. The numbers given are
+     * kept, the connections left keep their numbers, a forgotten one gets a new number, and the
+     * index shrinks to fit what is left.
+     *
+     * @param innovation history to prune;
+     * @param maxCapacity slots the index may take after pruning;
+     */
+    private static void unitTestPruning (InnovationHistory innovation, int maxCapacity) {
+        int pairs = 20000;
+        int[] numbers = new int[pairs];
+        for (int c = 0; c < pairs; c++) {
+            numbers[c] = innovation.getInnovationNumber(c, c + 1);
+        }
+        int before = innovation.capacity();
+
+        LongHashSet used = new LongHashSet();
+        for (int c = 0; c < pairs; c += pairs / KEPT) {
+            used.add(Genome.pair(c, c + 1));
+        }
+        innovation.retainAll(used);
+
+        assert innovation.size() == pairs : "Size changed to " + innovation.size();
+        assert innovation.capacity() <= maxCapacity :
+                "Capacity " + innovation.capacity() + " after pruning, from " + before;
+
+        for (int c = 0; c < pairs; c += pairs / KEPT) {
+            assert innovation.getInnovationNumber(c, c + 1) == numbers[c];
+        }
+        assert innovation.size() == pairs;
+        assert innovation.getInnovationNumber(1, 2) == pairs;
+        assert innovation.size() == pairs + 1;
+    }
+
+
+    /* Behavior with a fixed input, scored by the outputs of a few steps. */
+    private static class Scored implements Behavior {
+
+        private final float[][] sensors = {{.5f, -1f}};
+        private float score;
+        private int steps;
+
+        public float[][] updateSensors () {
+            return sensors;
+        }
+
+        public void move (float[][] controls) {
+            score += controls[0][0];
+            steps++;
+        }
+
+        public boolean solutionFound () {
+            return false;
+        }
+
+        public void render () {}
+
+        public boolean isAlive () {
+            return steps < 3;
+        }
+
+        public float fitnessFunction (Individual individual) {
+            return score;
+        }
+
+        public Scored copy () {
+            return new Scored();
+        }
+
+        public Scored copyForReplay () {
+            return new Scored();
+        }
+    }
+
+
+    /**
+     * Runs a few generations from a fixed seed and writes the connections of every genome, in
+     * their order, as saveGenome would, with the size of the history at the end.
+     */
+    private static String seededRun (int threads, InnovationHistory innovation) {
+        Random r = new Random(17);
+        Population population = new Population(2, 1, 150, r, innovation, new Scored(), threads);
+        population.setMode(Population.MODE.ONLY_SHOW_BEST);
+        for (int g = 0; g < 15; g++) {
+            population.runSimulation(r, innovation);
+        }
+        population.shutdown();
+
+        StringBuilder genomes = new StringBuilder();
+        for (Individual individual : population.getIndividuals()) {
+            for (ConnectionGene con : individual.getBrain().getConnectionGenes()) {
+                genomes.append(con.getInnovationNumber()).append(", ")
+                        .append(con.getInNode()).append(", ")
+                        .append(con.getOutNode()).append(", ")
+                        .append(con.getWeight()).append(con.isExpressed() ? ",\n" : " x,\n");
+            }
+            genomes.append('\n');
+        }
+        return genomes.append(innovation.size()).toString();
+    }
+
+
+    /**
+     * The children of a generation get the same innovation numbers, in the same order, on one
+     * thread and on several, with either history, so a seeded run gives the same genomes.
+     */
+    private static void unitTestReproducibleNumbers () {
+        String single = seededRun(1, new Innovation());
+        assert single.contains(", 4, ") : "No hidden node was ever added.";
+        for (int run = 0; run < 3; run++) {
+            assert single.equals(seededRun(4, new Innovation())) : "Run " + run + " differs.";
+            assert single.equals(seededRun(4, new ConcurrentInnovation())) :
+                    "Run " + run + " differs.";
+        }
+    }
+
+
+    /**
+     * Marks a number as given, checking it's in range and wasn't given before.
+     */
+    private static void mark (boolean[] given, int number) {
+        assert number >= 0 && number < given.length : "Number out of range: " + number;
+        assert !given[number] : "Number " + number + " given to two connections.";
+        given[number] = true;
+    }
+
+
+    private static int[] shuffled (int n, Random r) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return order;
+    }
+
+
+    public static void main (String[] args) throws Exception {
+        for (int run = 0; run < 20; run++) {
+            unitTestManyThreads(new Innovation());
+            unitTestManyThreads(new ConcurrentInnovation());
+        }
+
+        // A single index at load one half at most, and for the stripes at most one half each
+        // but never below the minimum.
+        unitTestPruning(new Innovation(), 256);
+        unitTestPruning(new ConcurrentInnovation(),
+                ConcurrentInnovation.STRIPES * MIN_CAPACITY + 4 * KEPT);
+
+        unitTestReproducibleNumbers();
+    }
+
+}
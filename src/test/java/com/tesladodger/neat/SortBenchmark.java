@@ -0,0 +1,114 @@
+package com.tesladodger.neat;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Compares the old insertion sort with a full stable sort and with the partial sort used by the
+ * species, for several list sizes. Also checks that the partial sort gives the same first
+ * elements as the full sort. Run with -ea.
+ */
+public class SortBenchmark {
+
+    private static final Comparator<float[]> DESCENDING = new Comparator<float[]>() {
+        public int compare (float[] a, float[] b) {
+            return Float.compare(b[0], a[0]);
+        }
+    };
+
+    private static final int[] SIZES = {8, 16, 32, 64, 128, 256, 512, 1024, 4096};
+
+    public static void main (String[] args) {
+        testSameAsFullSort();
+
+        System.out.println("   size   insertion        full     partial   (us / sort)");
+        for (int size : SIZES) {
+            int repetitions = Math.max(200, 20000000 / (size * size));
+            List<float[]> data = randomList(size, new Random(size));
+
+            // Warm up.
+            for (int i = 0; i < 3; i++) {
+                time(data, repetitions, 0);
+                time(data, repetitions, 1);
+                time(data, repetitions, 2);
+            }
+
+            System.out.printf("%7d %11.2f %11.2f %11.2f%n", size,
+                    time(data, repetitions, 0),
+                    time(data, repetitions, 1),
+                    time(data, repetitions, 2));
+        }
+    }
+
+
+    private static void testSameAsFullSort () {
+        Random r = new Random(0);
+        for (int t = 0; t < 200; t++) {
+            int size = 1 + r.nextInt(300);
+            List<float[]> data = randomList(size, r);
+            // Plenty of ties, to check stability.
+            for (float[] f : data) f[0] = (int) (f[0] * 10);
+
+            List<float[]> full = new ArrayList<>(data);
+            full.sort(DESCENDING);
+            List<float[]> partial = new ArrayList<>(data);
+            int k = size > 2 ? size/2 : size;
+            PartialSort.sortFirst(partial, k, DESCENDING);
+
+            for (int i = 0; i < k; i++) {
+                assert full.get(i) == partial.get(i);
+            }
+            assert partial.size() == size;
+        }
+        System.out.println("Partial sort matches the full sort: ok");
+    }
+
+
+    private static List<float[]> randomList (int size, Random r) {
+        List<float[]> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(new float[] {r.nextFloat()});
+        }
+        return list;
+    }
+
+
+    private static double time (List<float[]> data, int repetitions, int method) {
+        long start = System.nanoTime();
+        for (int i = 0; i < repetitions; i++) {
+            List<float[]> list = new ArrayList<>(data);
+            if (method == 0) {
+                insertionSort(list);
+            }
+            else if (method == 1) {
+                list.sort(DESCENDING);
+            }
+            else {
+                PartialSort.sortFirst(list, list.size()/2, DESCENDING);
+            }
+        }
+        return (System.nanoTime() - start) / 1000.0 / repetitions;
+    }
+
+
+    /**
+     * The sort the species used before.
+     */
+    private static void insertionSort (List<float[]> list) {
+        int i = 1;
+        while (i < list.size()) {
+            float[] f = list.get(i);
+            int j = i - 1;
+            while (j >= 0 && list.get(j)[0] < f[0]) {
+                list.set(j+1, list.get(j));
+                j--;
+            }
+            list.set(j+1, f);
+            i++;
+        }
+    }
+
+}
@@ -0,0 +1,505 @@
+package com.tesladodger.neat;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * Tests of the package private parts of speciation. Run with -ea.
+ */
+public class SpeciesTest {
+
+    /* Behavior that does nothing, the tests only look at the genomes. */
+    private static class Idle implements Behavior {
+
+        public float[][] updateSensors () {
+            return new float[0][];
+        }
+
+        public void move (float[][] controls) {}
+
+        public boolean solutionFound () {
+            return false;
+        }
+
+        public void render () {}
+
+        public boolean isAlive () {
+            return false;
+        }
+
+        public float fitnessFunction (Individual individual) {
+            return 0;
+        }
+
+        public Idle copy () {
+            return new Idle();
+        }
+
+        public Idle copyForReplay () {
+            return new Idle();
+        }
+    }
+
+    /* Behavior that lives one step, scored by the first output of the network. */
+    private static class Scored extends Idle {
+
+        private final float[][] sensors = {{1f, -.5f, .25f, 2f}};
+        private float score;
+        private boolean alive = true;
+
+        public float[][] updateSensors () {
+            return sensors;
+        }
+
+        public void move (float[][] controls) {
+            score = 1 + controls[0][0];
+            alive = false;
+        }
+
+        public boolean isAlive () {
+            return alive;
+        }
+
+        public float fitnessFunction (Individual individual) {
+            return score;
+        }
+
+        public Scored copy () {
+            return new Scored();
+        }
+
+        public Scored copyForReplay () {
+            return new Scored();
+        }
+    }
+
+    /* Behavior with a given fitness. */
+    private static class Fixed extends Idle {
+
+        private final float fitness;
+
+        private Fixed (float fitness) {
+            this.fitness = fitness;
+        }
+
+        public float fitnessFunction (Individual individual) {
+            return fitness;
+        }
+    }
+
+    private static final int INPUTS = 4;
+    private static final int OUTPUTS = 2;
+
+
+    /**
+     * Compatibility distance as it was computed before the merge pass: a nested scan of the
+     * connections of both genomes, with the same coefficients and normalizer.
+     */
+    private static float nestedScanDistance (Genome rep, Genome candidate) {
+        IntMap<ConnectionGene> repGenes = rep.getConnectionGenes();
+        IntMap<ConnectionGene> candidateGenes = candidate.getConnectionGenes();
+
+        int matching = 0;
+        float sum = 0;
+        for (ConnectionGene con1 : repGenes) {
+            for (ConnectionGene con2 : candidateGenes) {
+                if (con1.getInnovationNumber() == con2.getInnovationNumber()) {
+                    matching++;
+                    sum += Math.abs(con1.getWeight() - con2.getWeight());
+                    break;
+                }
+            }
+        }
+        float excessDisjoint = repGenes.size() + candidateGenes.size() - 2 * matching;
+
+        float averageWeightDiff;
+        if (repGenes.size() == 0 || candidateGenes.size() == 0) {
+            averageWeightDiff = 0f;
+        }
+        else if (matching == 0) {
+            averageWeightDiff = 100f;
+        }
+        else {
+            averageWeightDiff = sum / matching;
+        }
+
+        int N = candidateGenes.size() - 20;
+        if (N < 1) {
+            N = 1;
+        }
+
+        return (1.0f * excessDisjoint) / N + 0.4f * averageWeightDiff;
+    }
+
+
+    /**
+     * A genome grown from the given one with a few random mutations.
+     */
+    private static Genome relative (Genome genome, Random r, Innovation innovation) {
+        Genome relative = genome.copy();
+        int mutations = r.nextInt(30);
+        for (int m = 0; m < mutations; m++) {
+            switch (r.nextInt(3)) {
+                case 0:
+                    relative.addNodeMutation(r, innovation);
+                    break;
+                case 1:
+                    relative.addConnectionMutation(r, innovation);
+                    break;
+                default:
+                    relative.mutate(r, innovation);
+            }
+        }
+        return relative;
+    }
+
+
+    /**
+     * On random pairs of genomes, canAccept (merge pass with early exit) agrees with the old
+     * nested scan for thresholds just above and just below the distance, and for random
+     * thresholds. The sums are added in a different order, so a tiny margin is left around
+     * the distance.
+     */
+    private static void unitTestCompatibilityDistance () {
+        Random r = new Random(11);
+        Innovation innovation = new Innovation();
+
+        Genome[] ancestors = new Genome[4];
+        for (int a = 0; a < ancestors.length; a++) {
+            ancestors[a] = new Genome(INPUTS, OUTPUTS, false);
+            ancestors[a].mutate(r, innovation);
+            ancestors[a] = relative(ancestors[a], r, innovation);
+        }
+        Genome empty = new Genome(INPUTS, OUTPUTS, false);
+
+        for (int pair = 0; pair < 2000; pair++) {
+            Genome rep = pair % 100 == 0 ? empty : relative(ancestors[r.nextInt(4)], r, innovation);
+            Genome candidate = pair % 150 == 0 ? empty : relative(ancestors[r.nextInt(4)], r, innovation);
+            Species species = new Species(new Individual(rep, INPUTS, OUTPUTS, new Idle()));
+
+            float distance = nestedScanDistance(rep, candidate);
+            float margin = 1e-4f * Math.max(1f, distance);
+
+            assert species.canAccept(candidate, distance + margin) :
+                    "Rejected at a threshold above the distance " + distance;
+            if (distance - margin >= 0) {
+                assert !species.canAccept(candidate, distance - margin) :
+                        "Accepted at a threshold below the distance " + distance;
+            }
+            for (int t = 0; t < 5; t++) {
+                float threshold = r.nextFloat() * 2 * distance;
+                if (Math.abs(threshold - distance) > margin) {
+                    assert species.canAccept(candidate, threshold) == (distance <= threshold) :
+                            "Distance " + distance + ", threshold " + threshold;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Speciation as it was done on a single thread: each individual, in order, joins the first
+     * species in the list that accepts it, or starts a new one at the end of the list.
+     *
+     * @return index of the species of each individual;
+     */
+    private static int[] sequentialSpeciation (Individual[] individuals, List<Species> species,
+                                               float threshold) {
+        List<Species> list = new ArrayList<>(species);
+        int[] membership = new int[individuals.length];
+        for (int i = 0; i < individuals.length; i++) {
+            membership[i] = -1;
+            for (int s = 0; s < list.size(); s++) {
+                if (list.get(s).canAccept(individuals[i].getBrain(), threshold)) {
+                    membership[i] = s;
+                    break;
+                }
+            }
+            if (membership[i] < 0) {
+                membership[i] = list.size();
+                list.add(new Species(individuals[i]));
+            }
+        }
+        return membership;
+    }
+
+
+    /**
+     * Index of the species of each individual, after speciate.
+     */
+    private static int[] membership (Population population) {
+        Map<Individual, Integer> speciesOf = new IdentityHashMap<>();
+        List<Species> species = population.getSpecies();
+        for (int s = 0; s < species.size(); s++) {
+            for (Individual member : species.get(s).getMembers()) {
+                speciesOf.put(member, s);
+            }
+        }
+        Individual[] individuals = population.getIndividuals();
+        int[] membership = new int[individuals.length];
+        for (int i = 0; i < individuals.length; i++) {
+            membership[i] = speciesOf.get(individuals[i]);
+        }
+        return membership;
+    }
+
+
+    /**
+     * Two populations built from the same seed, one speciated on a single thread and the other
+     * on four, mutated the same way between rounds. After every round each individual is in
+     * the same species in both, and in the one the old sequential loop would have put it.
+     */
+    private static void unitTestParallelSpeciation () {
+        float threshold = 1.5f;
+        Population single = new Population(INPUTS, OUTPUTS, 300, new Random(3),
+                new Innovation(), new Idle(), 1);
+        Population parallel = new Population(INPUTS, OUTPUTS, 300, new Random(3),
+                new Innovation(), new Idle(), 4);
+        single.setCompatibilityThreshold(threshold);
+        parallel.setCompatibilityThreshold(threshold);
+
+        Innovation singleInnovation = new Innovation();
+        Innovation parallelInnovation = new Innovation();
+        Random singleRandom = new Random(8);
+        Random parallelRandom = new Random(8);
+
+        int matchedPrevious = 0;
+        for (int round = 0; round < 6; round++) {
+            int previous = single.getSpecies().size();
+            int[] expected = sequentialSpeciation(single.getIndividuals(), single.getSpecies(),
+                    threshold);
+
+            single.speciate();
+            parallel.speciate();
+            int[] singleMembership = membership(single);
+            int[] parallelMembership = membership(parallel);
+
+            assert single.getSpecies().size() == parallel.getSpecies().size();
+            for (int i = 0; i < expected.length; i++) {
+                assert singleMembership[i] == expected[i] : "Round " + round + ", individual " + i;
+                assert parallelMembership[i] == expected[i] : "Round " + round + ", individual " + i;
+                if (expected[i] < previous) matchedPrevious++;
+            }
+
+            for (Individual individual : single.getIndividuals()) {
+                mutate(individual.getBrain(), singleRandom, singleInnovation);
+            }
+            for (Individual individual : parallel.getIndividuals()) {
+                mutate(individual.getBrain(), parallelRandom, parallelInnovation);
+            }
+        }
+        parallel.shutdown();
+
+        // The parallel pass actually had species to test against.
+        assert matchedPrevious > 0;
+        assert single.getSpecies().size() > 3 : "Only " + single.getSpecies().size() + " species";
+    }
+
+
+    /**
+     * With a target number of species, every generation: speciate uses the threshold the
+     * population reports, the threshold then moves one step up when there were more species with
+     * members than the target, one step down when there were fewer, and never below 0.3, and
+     * the stats of the generation report the new threshold. The threshold starts low with a
+     * small target, so it has to go up, and then the target is raised out of reach, so it has to
+     * go down to the floor and stay there.
+     */
+    private static void unitTestThresholdTarget () throws Exception {
+        Random r = new Random(6);
+        Innovation innovation = new Innovation();
+        Population population = new Population(INPUTS, OUTPUTS, 150, r, innovation,
+                new Scored(), 2);
+        population.setCompatibilityThreshold(0.3f);
+
+        int rises = 0;
+        int falls = 0;
+        int floors = 0;
+        for (int generation = 0; generation < 40; generation++) {
+            int target = generation < 15 ? 3 : 1000;
+            population.setTargetNumberOfSpecies(target);
+
+            float threshold = population.getCompatibilityThreshold();
+            int[] expected = sequentialSpeciation(population.getIndividuals(),
+                    population.getSpecies(), threshold);
+            population.speciate();
+            int[] membership = membership(population);
+            int withMembers = 0;
+            boolean[] counted = new boolean[expected.length + population.getSpecies().size()];
+            for (int i = 0; i < expected.length; i++) {
+                assert membership[i] == expected[i] : "Speciated with another threshold.";
+                if (!counted[expected[i]]) {
+                    counted[expected[i]] = true;
+                    withMembers++;
+                }
+            }
+
+            GenerationStats stats = population.evaluateGenerationAsync(r, innovation, null).get();
+            float next = population.getCompatibilityThreshold();
+            assert stats.getCompatibilityThreshold() == next : "Reported " +
+                    stats.getCompatibilityThreshold() + ", next speciation uses " + next;
+            assert next >= 0.3f : "Threshold went below the minimum: " + next;
+
+            if (withMembers > target) {
+                assert next == threshold + 0.3f :
+                        withMembers + " species, " + threshold + " to " + next;
+                rises++;
+            }
+            else if (withMembers < target) {
+                assert next == Math.max(0.3f, threshold - 0.3f) :
+                        withMembers + " species, " + threshold + " to " + next;
+                if (next < threshold) falls++;
+                else floors++;
+            }
+            else {
+                assert next == threshold;
+            }
+        }
+        population.shutdown();
+
+        assert rises > 0 && falls > 0 && floors > 0 :
+                "Rises " + rises + ", falls " + falls + ", at the floor " + floors;
+    }
+
+
+    /**
+     * A species with the given fitnesses, ready to pick members with a strategy.
+     */
+    private static Species species (float[] fitnesses, Population.SELECTION selection) {
+        Species species = null;
+        for (float fitness : fitnesses) {
+            Individual member = new Individual(new Genome(INPUTS, OUTPUTS, false), INPUTS,
+                    OUTPUTS, new Fixed(fitness));
+            if (species == null) species = new Species(member);
+            else species.addToSpecies(member);
+        }
+        species.calculateIndividualFitnesses();
+        species.prepareSelection(selection);
+        return species;
+    }
+
+
+    /**
+     * Roulette as it was done before the running sums: a linear scan adding the fitnesses until
+     * the sum passes a random fraction of the total, or the first member if it never does.
+     */
+    private static Individual linearScanRoulette (List<Individual> members, Random r) {
+        float fitnessSum = 0;
+        for (Individual ind : members) {
+            fitnessSum += ind.getFitness();
+        }
+
+        float rand = r.nextFloat()*fitnessSum;
+        float runningSum = 0;
+
+        for (Individual ind : members) {
+            runningSum += ind.getFitness();
+            if (runningSum > rand) {
+                return ind;
+            }
+        }
+
+        return members.get(0);
+    }
+
+
+    /**
+     * On the same random draws, the roulette picks the same member as the old linear scan, for
+     * species with members of zero fitness, a single member, and only members of zero fitness,
+     * where it falls back to the first member.
+     */
+    private static void unitTestRoulette () {
+        Random r = new Random(12);
+        for (int s = 0; s < 200; s++) {
+            float[] fitnesses = new float[s < 20 ? 1 : 1 + r.nextInt(40)];
+            boolean allZero = s % 10 == 0;
+            for (int i = 0; i < fitnesses.length; i++) {
+                fitnesses[i] = allZero || r.nextInt(4) == 0 ? 0 : r.nextFloat() * 10;
+            }
+            Species species = species(fitnesses, Population.SELECTION.ROULETTE);
+            List<Individual> members = species.getMembers();
+
+            long seed = r.nextLong();
+            Random draws = new Random(seed);
+            Random scanDraws = new Random(seed);
+            for (int d = 0; d < 500; d++) {
+                Individual picked = species.pickAMember(draws);
+                assert picked == linearScanRoulette(members, scanDraws) :
+                        "Species " + s + ", draw " + d;
+                if (allZero) {
+                    assert picked == members.get(0) : "Didn't fall back to the first member.";
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The tournament picks the fittest of three random members, the first one on ties, and a
+     * population breeds with it.
+     */
+    private static void unitTestTournament () {
+        Random r = new Random(13);
+        float[] fitnesses = new float[30];
+        for (int i = 0; i < fitnesses.length; i++) {
+            fitnesses[i] = r.nextInt(5) == 0 ? 0 : r.nextInt(10);
+        }
+        Species species = species(fitnesses, Population.SELECTION.TOURNAMENT);
+        List<Individual> members = species.getMembers();
+
+        long seed = r.nextLong();
+        Random draws = new Random(seed);
+        Random expectedDraws = new Random(seed);
+        for (int d = 0; d < 1000; d++) {
+            Individual winner = members.get(expectedDraws.nextInt(members.size()));
+            for (int i = 1; i < 3; i++) {
+                Individual contender = members.get(expectedDraws.nextInt(members.size()));
+                if (contender.getFitness() > winner.getFitness()) winner = contender;
+            }
+            assert species.pickAMember(draws) == winner : "Draw " + d;
+        }
+
+        // A few generations picking the parents by tournament.
+        Innovation innovation = new Innovation();
+        Population population = new Population(INPUTS, OUTPUTS, 100, r, innovation,
+                new Scored(), 2);
+        population.setMode(Population.MODE.ONLY_SHOW_BEST);
+        population.setSelection(Population.SELECTION.TOURNAMENT);
+        for (int generation = 0; generation < 5; generation++) {
+            population.runSimulation(r, innovation);
+            assert population.getIndividuals().length == 100;
+            assert population.getGeneration() == generation + 1;
+        }
+        population.shutdown();
+    }
+
+
+    /**
+     * One random structural or weight mutation.
+     */
+    private static void mutate (Genome genome, Random r, Innovation innovation) {
+        switch (r.nextInt(3)) {
+            case 0:
+                genome.addNodeMutation(r, innovation);
+                break;
+            case 1:
+                genome.addConnectionMutation(r, innovation);
+                break;
+            default:
+                genome.mutate(r, innovation);
+        }
+    }
+
+
+    public static void main (String[] args) throws Exception {
+        unitTestCompatibilityDistance();
+        unitTestParallelSpeciation();
+        unitTestThresholdTarget();
+        unitTestRoulette();
+        unitTestTournament();
+    }
+
+}